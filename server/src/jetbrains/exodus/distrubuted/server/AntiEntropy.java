@@ -0,0 +1,170 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Periodically compares hash trees of local namespaces with ones of a random friend, descending only into
+ * subtrees whose hashes differ, and pulls keys the friend has newer versions of. Keys which are newer locally
+ * are repaired by the friend's own anti-entropy round. With partitioned data only leaves of token ranges both
+ * nodes are replicas of are compared.
+ */
+public class AntiEntropy {
+
+    private static Logger log = LoggerFactory.getLogger(AntiEntropy.class);
+    private static final int MAX_NODES_PER_REQUEST = 256;
+
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public AntiEntropy() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                log.info("Anti-entropy started");
+                final App app = App.getInstance();
+                while (!closed) {
+                    try {
+                        Thread.sleep(app.antiEntropyPeriod);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    final String[] friends = app.getFriends();
+                    if (friends.length == 0) {
+                        continue;
+                    }
+                    final String friend = friends[app.getRandom().nextInt(friends.length)];
+                    if (!RemoteConnector.getInstance().supports(friend, MerkleTree.PROTOCOL)) {
+                        continue;
+                    }
+                    final List<long[]> ranges = app.getSharedRanges(friend);
+                    if (ranges != null && ranges.isEmpty()) {
+                        continue;
+                    }
+                    final boolean[] shared = ranges == null ? null : MerkleTree.getLeaves(ranges);
+                    for (final String ns : app.getNamespaces()) {
+                        if (closed) {
+                            break;
+                        }
+                        try {
+                            sync(app, friend, ns, shared);
+                        } catch (ClientHandlerException | UniformInterfaceException | TimeoutException e) {
+                            log.warn("Can't compare [" + ns + "] with [" + friend + "]: " + e.getMessage());
+                            break;
+                        } catch (Throwable t) {
+                            log.error("Anti-entropy error, friend [" + friend + "], namespace [" + ns + "]", t);
+                        }
+                    }
+                }
+                log.info("Anti-entropy finished");
+            }
+        });
+        thread.setDaemon(true);
+        thread.setName("anti-entropy");
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            log.error("Failed to join anti-entropy thread", e);
+        }
+    }
+
+    /**
+     * @param shared leaves to compare, null to compare all of them.
+     */
+    private static void sync(@NotNull final App app, @NotNull final String friend, @NotNull final String ns,
+                             @Nullable final boolean[] shared) throws TimeoutException {
+        final MerkleTree tree = app.getMerkleTree();
+        final RemoteConnector conn = RemoteConnector.getInstance();
+        if (!tree.ensureBuilt(ns)) {
+            return;
+        }
+        int[] nodes = new int[]{0};
+        for (int level = 0; ; level++) {
+            final long[] localHashes = tree.getHashes(ns, level, nodes);
+            final long[] remoteHashes = new long[nodes.length];
+            for (int from = 0; from < nodes.length; from += MAX_NODES_PER_REQUEST) {
+                final int[] part = Arrays.copyOfRange(nodes, from, Math.min(nodes.length, from + MAX_NODES_PER_REQUEST));
+                System.arraycopy(conn.merkleHashes(friend, ns, level, part, 10000), 0, remoteHashes, from, part.length);
+            }
+            final int[] differ = new int[nodes.length];
+            int differCount = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                // zero hash means the friend has no data in the subtree
+                if (localHashes[i] != remoteHashes[i] && remoteHashes[i] != 0) {
+                    differ[differCount++] = nodes[i];
+                }
+            }
+            if (differCount == 0) {
+                return;
+            }
+            if (level == MerkleTree.DEPTH) {
+                nodes = Arrays.copyOf(differ, differCount);
+                break;
+            }
+            final int width = MerkleTree.getNodeCount(MerkleTree.DEPTH - level - 1);
+            nodes = new int[differCount * MerkleTree.FANOUT];
+            int count = 0;
+            for (int i = 0; i < differCount; i++) {
+                for (int j = 0; j < MerkleTree.FANOUT; j++) {
+                    final int node = differ[i] * MerkleTree.FANOUT + j;
+                    if (isShared(shared, node * width, width)) {
+                        nodes[count++] = node;
+                    }
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            nodes = Arrays.copyOf(nodes, count);
+        }
+        final Map<String, Long> localKeys = new HashMap<>();
+        for (final KeyTimeStampTuple tuple : tree.getLeafEntries(ns, nodes)) {
+            localKeys.put(tuple.getKey(), tuple.getTimeStamp());
+        }
+        int repaired = 0;
+        for (int from = 0; from < nodes.length; from += MAX_NODES_PER_REQUEST) {
+            final int[] part = Arrays.copyOfRange(nodes, from, Math.min(nodes.length, from + MAX_NODES_PER_REQUEST));
+            for (final KeyTimeStampTuple tuple : conn.merkleLeaves(friend, ns, part, 10000)) {
+                final Long localTimeStamp = localKeys.get(tuple.getKey());
+                if ((localTimeStamp != null && localTimeStamp >= tuple.getTimeStamp()) || !app.isReplica(ns, tuple.getKey())) {
+                    continue;
+                }
+                final ValueTimeStampTuple value;
+                try {
+                    value = conn.getRepl(friend, ns, tuple.getKey(), tuple.getTimeStamp(), 10000);
+                } catch (UniformInterfaceException e) {
+                    continue; // overwritten or gone since the leaf was listed
+                }
+                if (Database.putLocally(ns, tuple.getKey(), value.getValue(), value.getTimeStamp()) != null) {
+                    repaired++;
+                }
+            }
+        }
+        log.info("Compared [" + ns + "] with [" + friend + "]: " + nodes.length + " leaves differ, " + repaired + " keys repaired");
+    }
+
+    private static boolean isShared(@Nullable final boolean[] shared, final int from, final int leaves) {
+        if (shared == null) {
+            return true;
+        }
+        for (int leaf = from; leaf < from + leaves; leaf++) {
+            if (shared[leaf]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,9 +1,11 @@
 package jetbrains.exodus.distrubuted.server;
 
+import com.sun.jersey.api.container.ContainerFactory;
 import com.sun.jersey.api.container.httpserver.HttpServerFactory;
 import com.sun.jersey.api.core.ClassNamesResourceConfig;
 import com.sun.jersey.api.core.ResourceConfig;
 import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import jetbrains.exodus.core.dataStructures.Pair;
 import jetbrains.exodus.core.dataStructures.persistent.PersistentHashSet;
@@ -13,6 +15,7 @@ import jetbrains.exodus.database.impl.bindings.StringBinding;
 import jetbrains.exodus.database.persistence.*;
 import jetbrains.exodus.env.Environments;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +23,8 @@ import java.io.*;
 import java.net.URI;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class App {
@@ -29,28 +34,68 @@ public class App {
     private static App INSTANCE;
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final String NS_IDX_SUFFIX = "ns#idx";
+    private static final String SYSTEM_STORE_PREFIX = "sys#";
 
     private static int[] ports = new int[]{8080, 8082, 8888, 8089, 8087, 8086};
 
     private final URI baseURI;
     private final HttpServer server;
+    private final AsyncFrontEnd frontEnd;
     private final Environment environment;
     private final Random random = new SecureRandom();
-    private final Map<String, Pair<Store, Store>> namespaces = new TreeMap<>();
+    private final ConcurrentMap<String, Pair<Store, Store>> namespaces = new ConcurrentHashMap<>();
     private final Store namespacesIdx;
+    private final MerkleTree merkleTree;
+    private final ReplicationBatcher replicationBatcher;
+    private final ReadCache readCache;
+    private final HintedHandoff hintedHandoff;
+    private final OutboundReplicationQueue outboundQueue;
+    private final FailureDetector failureDetector;
+    private final GossipMembership gossip;
     private final AtomicReference<PersistentHashSet<String>> friends = new AtomicReference<>();
     private final AtomicReference<PersistentHashSet<FriendsListener>> friendListeners = new AtomicReference<>();
-    private final AsyncRunnableExecutor executor;
+    // ring built for the friends set it's paired with
+    private final AtomicReference<Pair<PersistentHashSet<String>, ConsistentHashRing>> ring = new AtomicReference<>();
+    private final WriteBackExecutor writeBackExecutor;
 
     final int friendDegree = Integer.getInteger("dexodus.friendDegree", 2);
     final int replicationReadDegree = Integer.getInteger("dexodus.replicationReadDegree", 4);
     final int replicationWriteDegree = Integer.getInteger("dexodus.replicationWriteDegree", 4);
     final int replicationWriteRetryDegree = Integer.getInteger("dexodus.replicationWriteRetryDegree", 3);
-
-    public App(URI baseURI, HttpServer server, AsyncRunnableExecutor executor, final Environment environment) {
+    final int dataChunkSize = Integer.getInteger("dexodus.dataChunkSize", 1000);
+    final int dataChunkBytes = Integer.getInteger("dexodus.dataChunkBytes", 4 * 1024 * 1024);
+    final int replicationBatchKeys = Integer.getInteger("dexodus.replicationBatchKeys", 5000);
+    final int replicationBatchBytes = Integer.getInteger("dexodus.replicationBatchBytes", 8 * 1024 * 1024);
+    final int replicationPipelineDepth = Integer.getInteger("dexodus.replicationPipelineDepth", 4);
+    final int replicationWorkers = Integer.getInteger("dexodus.replicationWorkers", Runtime.getRuntime().availableProcessors());
+    final int replicationInFlightBytes = Integer.getInteger("dexodus.replicationInFlightBytes", 64 * 1024 * 1024);
+    final int replicationBatchWindowMs = Integer.getInteger("dexodus.replicationBatchWindowMs", 2);
+    final int replicationBatchSize = Integer.getInteger("dexodus.replicationBatchSize", 256);
+    final int scanMaxLimit = Integer.getInteger("dexodus.scanMaxLimit", 1000);
+    final int antiEntropyPeriod = Integer.getInteger("dexodus.antiEntropyPeriod", 60000);
+    final int readCacheWeight = Integer.getInteger("dexodus.readCacheWeight", 32 * 1024 * 1024);
+    final int readCacheStalenessMs = Integer.getInteger("dexodus.readCacheStalenessMs", 500);
+    final int replicationFactor = Integer.getInteger("dexodus.replicationFactor", 0);
+    final int virtualNodes = Integer.getInteger("dexodus.virtualNodes", 128);
+    final int maxHintsPerFriend = Integer.getInteger("dexodus.maxHintsPerFriend", 100000);
+    final int hintReplayBatchSize = Integer.getInteger("dexodus.hintReplayBatchSize", 256);
+    final int hintReplayDelayMs = Integer.getInteger("dexodus.hintReplayDelayMs", 100);
+    final int hintWindowMs = Integer.getInteger("dexodus.hintWindowMs", 600000);
+    final int gossipIntervalMs = Integer.getInteger("dexodus.gossipIntervalMs", 1000);
+    final int gossipFanout = Integer.getInteger("dexodus.gossipFanout", 2);
+    final int gossipRetransmitMultiplier = Integer.getInteger("dexodus.gossipRetransmitMultiplier", 3);
+    final int gossipDownExpiryMs = Integer.getInteger("dexodus.gossipDownExpiryMs", 60 * 60 * 1000);
+    final int outboundBatchSize = Integer.getInteger("dexodus.outboundBatchSize", 1000);
+    final int outboundRetryDelayMs = Integer.getInteger("dexodus.outboundRetryDelayMs", 1000);
+    final int valueCompressionThreshold = Integer.getInteger("dexodus.valueCompressionThreshold", 4096);
+    final ConsistencyLevel writeConsistency = ConsistencyLevel.valueOf(System.getProperty("dexodus.writeConsistency", "QUORUM"));
+    final ConsistencyLevel readConsistency = ConsistencyLevel.valueOf(System.getProperty("dexodus.readConsistency", "QUORUM"));
+
+    public App(URI baseURI, HttpServer server, @Nullable AsyncFrontEnd frontEnd, WriteBackExecutor writeBackExecutor, final Environment environment) {
         this.baseURI = baseURI;
         this.server = server;
-        this.executor = executor;
+        this.frontEnd = frontEnd;
+        this.writeBackExecutor = writeBackExecutor;
         this.environment = environment;
         namespacesIdx = environment.computeInTransaction(new TransactionalComputable<Store>() {
             @Override
@@ -58,6 +103,45 @@ public class App {
                 return environment.openStore(NS_IDX_SUFFIX, StoreConfiguration.WITHOUT_DUPLICATES, txn);
             }
         });
+        // stores of existing namespaces are opened at once, so reads never open them in a read-write transaction
+        environment.executeInTransaction(new TransactionalExecutable() {
+            @Override
+            public void execute(@NotNull final Transaction txn) {
+                for (final String ns : getNamespaces(txn)) {
+                    namespaces.put(ns, openNsStores(ns, txn));
+                }
+            }
+        });
+        merkleTree = new MerkleTree(this);
+        replicationBatcher = new ReplicationBatcher(this);
+        readCache = new ReadCache(readCacheWeight, readCacheStalenessMs);
+        hintedHandoff = new HintedHandoff(this);
+        outboundQueue = new OutboundReplicationQueue(this);
+        failureDetector = new FailureDetector(this);
+        final boolean disableGossip = "false".equals(System.getProperty("dexodus.gossip.enabled"));
+        gossip = disableGossip || baseURI == null ? null : new GossipMembership(baseURI.toString(), new GossipMembership.Listener() {
+            @Override
+            public void memberAlive(@NotNull final String url) {
+                addFriends(url);
+            }
+
+            @Override
+            public void memberDown(@NotNull final String url) {
+                removeFriends(url);
+            }
+        }, gossipIntervalMs, gossipFanout, gossipRetransmitMultiplier, gossipDownExpiryMs);
+    }
+
+    /**
+     * Adds friends and asks them for the cluster membership, by gossip if it's enabled.
+     */
+    public void join(@NotNull final String... seeds) {
+        addFriends(seeds);
+        if (gossip != null) {
+            for (final String seed : seeds) {
+                gossip.join(seed);
+            }
+        }
     }
 
     public URI getBaseURI() {
@@ -68,10 +152,137 @@ public class App {
         return server;
     }
 
-    public void executeAsync(Runnable r) {
-        if (executor != null) {
-            executor.execute(r);
+    /**
+     * Remembers entries fetched from friends in background.
+     */
+    public void writeBack(@NotNull final String ns, @NotNull final Collection<KeyValueTuple> tuples) {
+        if (writeBackExecutor != null) {
+            if (isPartitioned()) {
+                final List<KeyValueTuple> own = new ArrayList<>(tuples.size());
+                for (final KeyValueTuple tuple : tuples) {
+                    if (isReplica(ns, tuple.getKey())) {
+                        own.add(tuple);
+                    }
+                }
+                writeBackExecutor.submit(ns, own);
+            } else {
+                writeBackExecutor.submit(ns, tuples);
+            }
+        }
+    }
+
+    /**
+     * With replicationFactor > 0 every key is stored by replicationFactor nodes only, chosen by consistent hashing.
+     * Keys which move to other nodes as the ring changes are kept by their former replicas, new replicas get them
+     * by anti-entropy with the rest of replicas.
+     */
+    public boolean isPartitioned() {
+        return replicationFactor > 0;
+    }
+
+    public boolean isReplica(@NotNull final String ns, @NotNull final String key) {
+        return !isPartitioned() || getRing().getReplicas(ns, key, replicationFactor).contains(getSelf());
+    }
+
+    /**
+     * @return friends storing the key, all friends if the data isn't partitioned.
+     */
+    @NotNull
+    public String[] getReplicaFriends(@NotNull final String ns, @NotNull final String key) {
+        if (!isPartitioned()) {
+            return getFriends();
+        }
+        final List<String> result = new ArrayList<>(getRing().getReplicas(ns, key, replicationFactor));
+        result.remove(getSelf());
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @return token ranges both this node and the friend are replicas of, null if the data isn't partitioned.
+     */
+    @Nullable
+    public List<long[]> getSharedRanges(@NotNull final String friend) {
+        return isPartitioned() ? getRing().getSharedRanges(getSelf(), friend, replicationFactor) : null;
+    }
+
+    /**
+     * @return token ranges the node is a replica of, null if the data isn't partitioned or the node isn't known yet.
+     */
+    @Nullable
+    public List<long[]> getReplicaRanges(@NotNull final String node) {
+        if (!isPartitioned()) {
+            return null;
         }
+        final ConsistentHashRing ring = getRing();
+        return ring.contains(node) ? ring.getSharedRanges(node, node, replicationFactor) : null;
+    }
+
+    @NotNull
+    private ConsistentHashRing getRing() {
+        final PersistentHashSet<String> current = friends.get();
+        final Pair<PersistentHashSet<String>, ConsistentHashRing> cached = ring.get();
+        if (cached != null && cached.getFirst() == current) {
+            return cached.getSecond();
+        }
+        final List<String> nodes = new ArrayList<>();
+        if (current != null) {
+            for (final String friend : current.getCurrent()) {
+                nodes.add(friend);
+            }
+        }
+        nodes.add(getSelf());
+        final ConsistentHashRing result = new ConsistentHashRing(nodes, virtualNodes);
+        ring.set(new Pair<>(current, result));
+        return result;
+    }
+
+    @NotNull
+    private String getSelf() {
+        return baseURI == null ? "" : baseURI.toString();
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        if (server != null && server.getExecutor() instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor executor = (ThreadPoolExecutor) server.getExecutor();
+            result.put("server.activeThreads", (long) executor.getActiveCount());
+            result.put("server.queued", (long) executor.getQueue().size());
+        }
+        if (frontEnd != null) {
+            for (final Map.Entry<String, Long> entry : frontEnd.getStatistics().entrySet()) {
+                result.put("server." + entry.getKey(), entry.getValue());
+            }
+        }
+        if (writeBackExecutor != null) {
+            for (final Map.Entry<String, Long> entry : writeBackExecutor.getStatistics().entrySet()) {
+                result.put("writeBack." + entry.getKey(), entry.getValue());
+            }
+        }
+        for (final Map.Entry<String, Long> entry : readCache.getStatistics().entrySet()) {
+            result.put("readCache." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : hintedHandoff.getStatistics().entrySet()) {
+            result.put("hints." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : outboundQueue.getStatistics().entrySet()) {
+            result.put("outbound." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : failureDetector.getStatistics().entrySet()) {
+            result.put("friends." + entry.getKey(), entry.getValue());
+        }
+        if (gossip != null) {
+            for (final Map.Entry<String, Long> entry : gossip.getStatistics().entrySet()) {
+                result.put("gossip." + entry.getKey(), entry.getValue());
+            }
+        }
+        for (final Map.Entry<String, Long> entry : RemoteConnector.getInstance().getStatistics().entrySet()) {
+            result.put("client." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : RemoteConnector.getInstance().getLatency().getStatistics().entrySet()) {
+            result.put("latency." + entry.getKey(), entry.getValue());
+        }
+        return result;
     }
 
     public Environment getEnvironment() {
@@ -86,57 +297,136 @@ public class App {
         return namespacesIdx;
     }
 
-    @SuppressWarnings("unchecked")
-    public <T> T computeInTransaction(@NotNull final String ns, @NotNull NamespaceTransactionalComputable<T> computable) {
-        final Pair<Store, Store>[] storePair = new Pair[]{null};
-        final boolean[] localStores = new boolean[]{false};
-        final Transaction txn = environment.beginTransaction(new Runnable() {
-            @Override
-            public void run() {
-                if (storePair[0] == null) {
-                    storePair[0] = namespaces.get(ns);
-                }
-            }
-        });
-        txn.setCommitHook(new Runnable() {
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    @Nullable
+    public GossipMembership getGossip() {
+        return gossip;
+    }
+
+    public HintedHandoff getHintedHandoff() {
+        return hintedHandoff;
+    }
+
+    public OutboundReplicationQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    public ReplicationBatcher getReplicationBatcher() {
+        return replicationBatcher;
+    }
+
+    @NotNull
+    public Store openSystemStore(@NotNull final String name, @NotNull final StoreConfiguration config) {
+        return environment.computeInTransaction(new TransactionalComputable<Store>() {
             @Override
-            public void run() {
-                if (!namespaces.containsKey(ns)) { // don't remember if conflict occurred
-                    namespaces.put(ns, storePair[0]);
-                    localStores[0] = false;
-                }
+            public Store compute(@NotNull final Transaction txn) {
+                return environment.openStore(SYSTEM_STORE_PREFIX + name, config, txn);
             }
         });
+    }
+
+    public <T> T computeInTransaction(@NotNull final String ns, @NotNull NamespaceTransactionalComputable<T> computable) {
+        Pair<Store, Store> storePair = namespaces.get(ns);
+        boolean localStores = false;
+        final Transaction txn = environment.beginTransaction();
         try {
             while (true) {
-                if (storePair[0] == null) {
-                    final Store store = environment.openStore(ns, StoreConfiguration.WITHOUT_DUPLICATES, txn);
-                    final Store idx = environment.openStore(ns + NS_IDX_SUFFIX, StoreConfiguration.WITH_DUPLICATES, txn);
-                    storePair[0] = new Pair<>(store, idx);
-                    localStores[0] = true;
+                if (storePair == null) {
+                    storePair = openNsStores(ns, txn);
+                    localStores = true;
                 }
-                final T result = computable.compute(txn, storePair[0].getFirst(), storePair[0].getSecond(), this);
+                final T result = computable.compute(txn, storePair.getFirst(), storePair.getSecond(), this);
                 if (txn.flush()) {
+                    if (localStores) {
+                        // stores are surely created once the transaction is flushed, publish them unless someone did it first
+                        localStores = namespaces.putIfAbsent(ns, storePair) != null;
+                    }
                     return result;
                 }
                 txn.revert();
+                if (localStores) {
+                    // stores could be created by the reverted changes, open them once more
+                    closeNsStores(storePair);
+                    localStores = false;
+                    storePair = namespaces.get(ns);
+                }
             }
         } finally {
             txn.abort();
-            if (localStores[0]) {
-                storePair[0].getFirst().close();
-                storePair[0].getSecond().close();
+            if (localStores) {
+                closeNsStores(storePair);
             }
         }
     }
 
+    /**
+     * Executes computable which never writes in a snapshot which is just dropped afterwards, so it neither
+     * pays for flushing nor retries on conflicts with concurrent writes. Stores of all namespaces are opened
+     * at startup or by the first write into them, so a namespace having no opened stores has no data.
+     *
+     * @return null if the namespace has no data.
+     */
+    @Nullable
+    public <T> T computeInReadonlyTransaction(@NotNull final String ns, @NotNull final NamespaceTransactionalComputable<T> computable) {
+        final Pair<Store, Store> storePair = namespaces.get(ns);
+        if (storePair == null) {
+            return null;
+        }
+        final Transaction txn = environment.beginTransaction();
+        try {
+            return computable.compute(txn, storePair.getFirst(), storePair.getSecond(), this);
+        } finally {
+            txn.abort();
+        }
+    }
+
+    public <T> T computeInReadonlyTransaction(@NotNull final TransactionalComputable<T> computable) {
+        final Transaction txn = environment.beginTransaction();
+        try {
+            return computable.compute(txn);
+        } finally {
+            txn.abort();
+        }
+    }
+
+    /**
+     * @return cached stores of the namespace, they are opened in a transaction only at first access.
+     */
     public Pair<Store, Store> getNsStores(@NotNull final String ns) {
-        return computeInTransaction(ns, new NamespaceTransactionalComputable<Pair<Store, Store>>() {
+        final Pair<Store, Store> result = namespaces.get(ns);
+        if (result != null) {
+            return result;
+        }
+        computeInTransaction(ns, new NamespaceTransactionalComputable<Object>() {
             @Override
-            public Pair<Store, Store> compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
-                return new Pair<>(namespace, idx);
+            public Object compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                return null;
             }
         });
+        // stores of the transaction are closed if another thread published its ones first
+        return namespaces.get(ns);
+    }
+
+    private Pair<Store, Store> openNsStores(@NotNull final String ns, @NotNull final Transaction txn) {
+        final Store store = environment.openStore(ns, StoreConfiguration.WITHOUT_DUPLICATES, txn);
+        final Store idx = environment.openStore(ns + NS_IDX_SUFFIX, StoreConfiguration.WITH_DUPLICATES, txn);
+        return new Pair<>(store, idx);
+    }
+
+    private static void closeNsStores(@NotNull final Pair<Store, Store> storePair) {
+        storePair.getFirst().close();
+        storePair.getSecond().close();
     }
 
     @NotNull
@@ -154,7 +444,7 @@ public class App {
         final List<String> result = new ArrayList<>();
         final List<String> nsList = environment.getAllStoreNames(txn);
         for (final String ns : nsList) {
-            if (!ns.endsWith(NS_IDX_SUFFIX)) {
+            if (isNamespace(ns)) {
                 result.add(ns);
             }
         }
@@ -167,10 +457,10 @@ public class App {
         final List<String> result = new ArrayList<>();
         final List<String> nsList = environment.getAllStoreNames(txn);
         for (final String ns : nsList) {
-            if (!ns.endsWith(NS_IDX_SUFFIX)) {
-                final ByteIterable timeStampEntry = namespacesIdx.get(txn, StringBinding.stringToEntry(ns));
+            if (isNamespace(ns)) {
+                final long nsTimeStamp = getNamespaceTimeStamp(ns, txn);
                 // throw new NullPointerException("There is no known timestamp for the namespace: " + ns);
-                if (timeStampEntry != null && LongBinding.compressedEntryToLong(timeStampEntry) >= timestamp) {
+                if (nsTimeStamp != 0 && nsTimeStamp >= timestamp) {
                     result.add(ns);
                 }
             }
@@ -179,6 +469,18 @@ public class App {
         return size > 0 ? result.toArray(new String[size]) : EMPTY_STRING_ARRAY;
     }
 
+    /**
+     * @return timestamp of the most recent entry in the namespace or 0 if it is unknown.
+     */
+    public long getNamespaceTimeStamp(@NotNull final String ns, @NotNull final Transaction txn) {
+        final ByteIterable timeStampEntry = namespacesIdx.get(txn, StringBinding.stringToEntry(ns));
+        return timeStampEntry == null ? 0 : LongBinding.compressedEntryToLong(timeStampEntry);
+    }
+
+    private static boolean isNamespace(@NotNull final String storeName) {
+        return !storeName.endsWith(NS_IDX_SUFFIX) && !storeName.startsWith(SYSTEM_STORE_PREFIX);
+    }
+
     public void addFriends(@NotNull final String... friends) {
         final List<String> added = new ArrayList<>();
         for (; ; ) {
@@ -234,6 +536,7 @@ public class App {
         final PersistentHashSet<FriendsListener> listeners = friendListeners.get();
         for (final String friend : removed) {
             log.info("Remove friend [" + friend + "]");
+            RemoteConnector.getInstance().getLatency().forget(friend);
             if (listeners != null) {
                 for (final FriendsListener listener : listeners.getCurrent()) {
                     listener.friendRemoved(friend);
@@ -286,24 +589,22 @@ public class App {
         return result;
     }
 
-    public void shuffle(String[] data) {
-        if (data.length < 2) {
-            return;
-        }
-        for (int i = data.length - 1; i >= 0; i--) {
-            final int index = random.nextInt(i + 1);
-            final String a = data[index];
-            data[index] = data[i];
-            data[i] = a;
-        }
-    }
-
     public void close() {
         server.stop(0);
+        if (server.getExecutor() instanceof ExecutorService) {
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+        failureDetector.close();
+        if (gossip != null) {
+            gossip.close();
+        }
+        outboundQueue.close();
+        replicationBatcher.close();
+        hintedHandoff.close();
         for (final Pair<Store, Store> storePair : namespaces.values()) {
-            storePair.getFirst().close();
-            storePair.getSecond().close();
+            closeNsStores(storePair);
         }
+        merkleTree.close();
         namespacesIdx.close();
         environment.close();
         log.info("Server stopped");
@@ -314,6 +615,14 @@ public class App {
     }
 
     public static void main(String[] args) {
+        // the server writes headers and body separately, small responses would wait for delayed ACK of clients
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        // idle connections kept per friend, read once by the first HttpURLConnection
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, Integer.getInteger("dexodus.maxRequestsPerFriend", 16))));
+        }
         final EnvironmentConfig ec = new EnvironmentConfig();
         ec.setLogCacheShared(false);
         ec.setMemoryUsagePercentage(80);
@@ -338,6 +647,13 @@ public class App {
             String baseUrl = System.getProperty("dexodus.base.url");
             URI baseURI = null;
             HttpServer server = null;
+            final ExecutorService serverExecutor = createServerExecutor();
+            final boolean disableAsyncFrontEnd = "false".equals(System.getProperty("dexodus.asyncFrontEnd.enabled"));
+            final AsyncFrontEnd frontEnd = disableAsyncFrontEnd ? null :
+                    new AsyncFrontEnd(ContainerFactory.createContainer(HttpHandler.class, getResourceConfig()), serverExecutor);
+            if (disableAsyncFrontEnd) {
+                log.info("Async front end disabled");
+            }
 
             if (baseUrl == null) {
                 // get own ip
@@ -345,7 +661,7 @@ public class App {
                     try {
                         baseUrl = "http://" + Utils.getLocalAddress().getHostAddress() + ":" + p + "/";
                         baseURI = URI.create(baseUrl);
-                        server = HttpServerFactory.create(baseURI, getResourceConfig());
+                        server = frontEnd == null ? HttpServerFactory.create(baseURI, getResourceConfig()) : HttpServerFactory.create(baseURI, frontEnd);
                         break;
                     } catch (Exception e) {
                         log.info("Can not start server on port " + p + ": " + e.getMessage());
@@ -357,32 +673,42 @@ public class App {
                 }
             } else {
                 baseURI = URI.create(baseUrl);
-                server = HttpServerFactory.create(baseURI, getResourceConfig());
+                server = frontEnd == null ? HttpServerFactory.create(baseURI, getResourceConfig()) : HttpServerFactory.create(baseURI, frontEnd);
             }
 
             final boolean disableAsyncExecutor = "false".equals(System.getProperty("dexodus.async.enabled"));
-            final AsyncRunnableExecutor asyncRunnableExecutor = disableAsyncExecutor ? null : new AsyncRunnableExecutor();
+            final WriteBackExecutor writeBackExecutor = disableAsyncExecutor ? null : new WriteBackExecutor(
+                    Integer.getInteger("dexodus.writeBackCapacity", 100000), Integer.getInteger("dexodus.writeBackBatchSize", 1000));
             if (disableAsyncExecutor) {
                 log.info("Async executor disabled");
             }
-            App.INSTANCE = new App(baseURI, server, asyncRunnableExecutor, environment);
+            server.setExecutor(serverExecutor);
+            App.INSTANCE = new App(baseURI, server, frontEnd, writeBackExecutor, environment);
             final boolean disableBackgroundReplicator = "false".equals(System.getProperty("dexodus.backroundrepl.enabled"));
             final BackgroundReplicator backgroundReplicator = disableBackgroundReplicator ? null : new BackgroundReplicator();
             if (disableBackgroundReplicator) {
                 log.info("Background replicator disabled");
             }
-            App.getInstance().addFriends(parseFriends());
+            final boolean disableAntiEntropy = "false".equals(System.getProperty("dexodus.antientropy.enabled"));
+            final AntiEntropy antiEntropy = disableAntiEntropy ? null : new AntiEntropy();
+            if (disableAntiEntropy) {
+                log.info("Anti-entropy disabled");
+            }
+            App.getInstance().join(parseFriends());
             server.start();
             log.info("Start server " + baseURI.toString());
 
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 @Override
                 public void run() {
+                    if (antiEntropy != null) {
+                        antiEntropy.close();
+                    }
                     if (backgroundReplicator != null) {
                         backgroundReplicator.close();
                     }
-                    if (asyncRunnableExecutor != null) {
-                        asyncRunnableExecutor.close();
+                    if (writeBackExecutor != null) {
+                        writeBackExecutor.close();
                     }
                     getInstance().close();
                 }
@@ -399,9 +725,39 @@ public class App {
 
     }
 
+    /**
+     * Without an executor the JDK server handles all requests on its single dispatcher thread. When the pool
+     * and its queue are full, the dispatcher handles the request itself and stops accepting meanwhile.
+     */
+    @NotNull
+    private static ExecutorService createServerExecutor() {
+        if ("virtual".equals(System.getProperty("dexodus.serverExecutor"))) {
+            try {
+                final ExecutorService result = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Server requests are handled by virtual threads");
+                return result;
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads aren't supported by this JVM, use a thread pool");
+            }
+        }
+        final int threads = Integer.getInteger("dexodus.serverThreads", 64);
+        final ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Integer.getInteger("dexodus.serverQueue", 1024)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                return new Thread(r, "http-" + count.incrementAndGet());
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        result.allowCoreThreadTimeOut(true);
+        log.info("Server requests are handled by " + threads + " threads");
+        return result;
+    }
+
     @SuppressWarnings("unchecked")
     public static ResourceConfig getResourceConfig() {
-        final ClassNamesResourceConfig cfg = new ClassNamesResourceConfig(Database.class);
+        final ClassNamesResourceConfig cfg = new ClassNamesResourceConfig(Database.class, BinaryProvider.class);
         cfg.getContainerResponseFilters().add(0, new CorsFilter());
         cfg.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
         return cfg;
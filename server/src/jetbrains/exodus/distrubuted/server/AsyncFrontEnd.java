@@ -0,0 +1,236 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves GET and form POST of /{ns}/{key} without holding a server thread while friends are asked: the
+ * exchange is left open and completed on the server executor once Database.getAsync or postAsync completes.
+ * Any other request goes to Jersey.
+ */
+public class AsyncFrontEnd implements HttpHandler {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncFrontEnd.class);
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final HttpHandler jersey;
+    private final Executor executor;
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    public AsyncFrontEnd(@NotNull final HttpHandler jersey, @NotNull final Executor executor) {
+        this.jersey = jersey;
+        this.executor = executor;
+    }
+
+    @Override
+    public void handle(@NotNull final HttpExchange exchange) throws IOException {
+        final String[] path = parsePath(exchange);
+        final Map<String, String> query = path == null ? Collections.<String, String>emptyMap() : parseQuery(exchange);
+        final Long timeStamp = parseTimeStamp(query.get("timeStamp"));
+        final String method = exchange.getRequestMethod();
+        final Headers headers = exchange.getRequestHeaders();
+        final boolean get = "GET".equals(method) && acceptsText(headers.getFirst("Accept"));
+        final boolean post = "POST".equals(method) && isForm(headers.getFirst("Content-Type"));
+        if (path == null || (timeStamp != null && timeStamp == Long.MIN_VALUE) || !(get || post)) {
+            jersey.handle(exchange);
+            return;
+        }
+        final String ns = path[0];
+        final String key = path[1];
+        inFlight.incrementAndGet();
+        CompletableFuture<Response> result;
+        try {
+            if (get) {
+                final ConsistencyLevel level = ConsistencyLevel.parseRead(query.get(ConsistencyLevel.PARAM),
+                        headers.getFirst(ConsistencyLevel.HEADER), App.getInstance().readConsistency);
+                // stored bytes are sent as they are
+                result = Database.getAsync(ns, key, level).thenApply(value -> Response.ok(ValueRecord.of(value).getUtf8(), MediaType.TEXT_PLAIN_TYPE).build());
+            } else {
+                final ConsistencyLevel level = ConsistencyLevel.parseWrite(query.get(ConsistencyLevel.PARAM),
+                        headers.getFirst(ConsistencyLevel.HEADER), App.getInstance().writeConsistency);
+                result = Database.postAsync(ns, key, readForm(exchange.getRequestBody()).get("value"), timeStamp, level, false);
+            }
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        if (result.isDone()) {
+            // local reads and cache hits, this is a server thread already
+            result.whenComplete((response, t) -> respond(exchange, response, t));
+        } else {
+            result.whenCompleteAsync((response, t) -> respond(exchange, response, t), executor);
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        result.put("asyncServed", served.get());
+        result.put("asyncInFlight", inFlight.get());
+        return result;
+    }
+
+    private void respond(@NotNull final HttpExchange exchange, @Nullable final Response response, @Nullable final Throwable t) {
+        try {
+            int status = Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+            byte[] body = NO_BODY;
+            if (response != null) {
+                status = response.getStatus();
+                final Object entity = response.getEntity();
+                if (entity != null) {
+                    body = entity instanceof byte[] ? (byte[]) entity : entity.toString().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", MediaType.TEXT_PLAIN);
+                }
+            } else {
+                final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (cause instanceof WebApplicationException) {
+                    status = ((WebApplicationException) cause).getResponse().getStatus();
+                } else {
+                    log.error("Request failed: " + exchange.getRequestURI(), cause);
+                }
+            }
+            if (exchange.getRequestHeaders().getFirst("Origin") != null) {
+                final Headers headers = exchange.getResponseHeaders();
+                for (final String[] header : CorsFilter.ORIGIN_HEADERS) {
+                    headers.add(header[0], header[1]);
+                }
+            }
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                exchange.getResponseBody().write(body);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to respond to " + exchange.getRemoteAddress() + ": " + e.getMessage());
+        } finally {
+            exchange.close();
+            inFlight.decrementAndGet();
+            served.incrementAndGet();
+        }
+    }
+
+    // namespace and key, null if the path isn't /{ns}/{key}
+    @Nullable
+    private String[] parsePath(@NotNull final HttpExchange exchange) {
+        String path = exchange.getRequestURI().getRawPath();
+        final String context = exchange.getHttpContext().getPath();
+        if (path == null || !path.startsWith(context)) {
+            return null;
+        }
+        path = path.substring(context.length());
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        final String[] result = path.split("/", -1);
+        if (result.length != 2 || result[0].isEmpty() || result[1].isEmpty() || Database.isReserved(result[0])) {
+            return null;
+        }
+        try {
+            result[0] = decode(result[0]);
+            result[1] = decode(result[1]);
+        } catch (WebApplicationException e) {
+            return null;
+        }
+        return result;
+    }
+
+    // first value of every parameter like Jersey takes, undecodable values are kept raw for Jersey to answer
+    @NotNull
+    private static Map<String, String> parseQuery(@NotNull final HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> result = new HashMap<>();
+        for (final String param : query.split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq > 0 && !result.containsKey(param.substring(0, eq))) {
+                String value = param.substring(eq + 1);
+                try {
+                    value = decode(value);
+                } catch (WebApplicationException ignore) {
+                }
+                result.put(param.substring(0, eq), value);
+            }
+        }
+        return result;
+    }
+
+    // Long.MIN_VALUE if the parameter isn't a number, Jersey answers that
+    @Nullable
+    private static Long parseTimeStamp(@Nullable final String timeStamp) {
+        if (timeStamp == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(timeStamp);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static boolean acceptsText(@Nullable final String accept) {
+        return accept == null || accept.contains("*/*") || accept.contains("text/*") || accept.contains(MediaType.TEXT_PLAIN);
+    }
+
+    private static boolean isForm(@Nullable final String contentType) {
+        return contentType != null && contentType.startsWith(MediaType.APPLICATION_FORM_URLENCODED);
+    }
+
+    @NotNull
+    private static Map<String, String> readForm(@NotNull final InputStream in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+        }
+        final Map<String, String> result = new HashMap<>();
+        for (final String param : new String(out.toByteArray(), StandardCharsets.UTF_8).split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq > 0) {
+                final String name = formDecode(param.substring(0, eq));
+                if (!result.containsKey(name)) {
+                    result.put(name, formDecode(param.substring(eq + 1)));
+                }
+            }
+        }
+        return result;
+    }
+
+    // path and query decoding, unlike forms '+' stands for itself
+    @NotNull
+    private static String decode(@NotNull final String s) {
+        return formDecode(s.replace("+", "%2B"));
+    }
+
+    @NotNull
+    private static String formDecode(@NotNull final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+        }
+    }
+}
@@ -5,128 +5,148 @@ import com.sun.jersey.api.client.async.ITypeListener;
 import com.sun.jersey.api.client.async.TypeListener;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Quorum of asynchronous requests. A context is a CompletableFuture completed by the listeners of requests,
+ * so waiting for it doesn't need a thread: results are folded under the context's monitor, it completes as
+ * soon as quorum of requests succeed or fails as soon as quorum can't be reached, then outstanding requests
+ * are cancelled.
+ */
 public class AsyncQuorum {
 
-    private static final Future[] NO_FUTURES = new Future[0];
+    private static Logger log = LoggerFactory.getLogger(AsyncQuorum.class);
+
+    private static final Future<?>[] NO_FUTURES = new Future<?>[0];
+    // quorum timeouts and hedged requests, they are run by TIMER_TASKS since cancelling requests runs their
+    // listeners and these can take a while; not by the client executor, they would wait behind blocking requests
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread result = new Thread(r, "quorum-timer");
+        result.setDaemon(true);
+        return result;
+    });
+    private static final AtomicInteger TIMER_TASK_THREADS = new AtomicInteger();
+    private static final ExecutorService TIMER_TASKS = Executors.newFixedThreadPool(Integer.getInteger("dexodus.quorumTimerThreads", 4), r -> {
+        final Thread result = new Thread(r, "quorum-timer-" + TIMER_TASK_THREADS.incrementAndGet());
+        result.setDaemon(true);
+        return result;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
 
     public static <R, T> Context<R, T> createContext(final int quorum, final int total, final ResultFilter<R, T> filter, final GenericType<T> type) {
-        return new Context<R, T>() {
-            private final Semaphore sema = new Semaphore(0);
-            private final AtomicReference<Future[]> futures = new AtomicReference<>();
-            private final AtomicReference<Status<R>> result = new AtomicReference<>(new Status<R>(null, 0, 0));
+        return new QuorumContext<>(quorum, total, filter, type);
+    }
 
-            @Override
-            public Context<R, T> setFutures(@NotNull final Future... f) {
-                if (!futures.compareAndSet(null, f)) {
-                    throw new IllegalStateException("Futures already set");
+    /**
+     * Non-blocking k-of-n: completes with the fold of results as soon as quorum of stages succeed, fails with
+     * QuorumException as soon as it can't be reached anymore. Stages still running then are cancelled.
+     */
+    public static <R, T> CompletableFuture<R> quorum(@NotNull final List<? extends CompletionStage<T>> stages, final int quorum,
+                                                     @NotNull final ResultFilter<R, T> filter) {
+        final QuorumContext<R, T> ctx = new QuorumContext<>(quorum, stages.size(), filter, null);
+        for (final CompletionStage<T> stage : stages) {
+            final CompletableFuture<T> f = stage.toCompletableFuture();
+            ctx.addFuture(f);
+            f.whenComplete((result, t) -> {
+                if (t == null) {
+                    ctx.succeeded(result);
+                } else if (!(t instanceof CancellationException)) {
+                    ctx.failed();
                 }
-                return this;
-            }
+            });
+        }
+        return ctx.toCompletableFuture();
+    }
 
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning) {
-                Future[] f = futures.get();
-                if (f == null) {
-                    if (futures.compareAndSet(null, NO_FUTURES)) {
-                        return true;
-                    }
-                    f = futures.get();
-                }
-                for (final Future future : f) {
-                    future.cancel(mayInterruptIfRunning);
-                }
-                futures.set(NO_FUTURES);
-                return true;
-            }
+    public static interface Context<R, T> extends Future<R> {
 
-            @Override
-            public boolean isCancelled() {
-                return futures.get() == NO_FUTURES;
-            }
+        Context<R, T> setFutures(@NotNull final Future<?>... futures);
 
-            @Override
-            public boolean isDone() {
-                return result.get() != null;
-            }
+        /**
+         * Adds one more request, e.g. a hedged one, to the requests of the context.
+         */
+        Context<R, T> addFuture(@NotNull final Future<?> future);
 
-            @Override
-            public R get() throws InterruptedException, ExecutionException {
-                sema.acquire(quorum);
-                return extractResult();
-            }
+        /**
+         * @return true if quorum is reached or can't be reached anymore.
+         */
+        boolean await(long timeout, @NotNull TimeUnit unit) throws InterruptedException;
 
-            @Override
-            public R get(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                sema.tryAcquire(quorum, timeout, unit);
-                return extractResult();
-            }
+        ITypeListener<T> getListener();
 
-            @Override
-            public ITypeListener<T> getListener() {
-                return getListener(null);
-            }
+        ITypeListener<T> getListener(@Nullable ErrorHandler<T> handler);
 
-            @Override
-            public ITypeListener<T> getListener(@Nullable final ErrorHandler<T> handler) {
-                return new TypeListener<T>(type) {
-                    @Override
-                    public void onComplete(final Future<T> f) throws InterruptedException {
-                        try {
-                            final T r = f.get();
-                            while (true) {
-                                final Status<R> current = result.get();
-                                final R folded = filter.fold(current.result, r);
-                                final Status<R> updated = new Status<>(folded, current.success + 1, current.fail);
-                                if (result.compareAndSet(current, updated)) {
-                                    sema.release();
-                                    return;
-                                }
-                            }
-                        } catch (ExecutionException e) {
-                            if (handler != null) {
-                                handler.handleFailed(f, e);
-                            }
-                            while (true) {
-                                final Status<R> current = result.get();
-                                final Status<R> updated = new Status<>(current.result, current.success, current.fail + 1);
-                                if (result.compareAndSet(current, updated)) {
-                                    if (updated.fail > total - quorum) {
-                                        sema.release(quorum); // release all
-                                    }
-                                    return;
-                                }
-                            }
-                        } catch (CancellationException c) {
-                            if (handler != null) {
-                                handler.handleFailed(f, null);
-                            }
-                        }
-                    }
-                };
-            }
+        /**
+         * Completes when quorum is reached or can't be reached anymore, doesn't block. Completing or cancelling
+         * the returned future cancels outstanding requests.
+         */
+        CompletableFuture<R> toCompletableFuture();
+    }
 
-            private R extractResult() {
-                final Status<R> status = result.get();
-                if (status.success < quorum) {
-                    throw new QuorumException("quorum not reached");
-                }
-                return status.result;
-            }
-        };
+    /**
+     * Sends requests to first quorum of friends ordered by preference and one more request to the next friend
+     * every hedgeDelay ms until quorum is reached or timeout elapses. Requests are expected to complete
+     * listeners got from the context. Doesn't block, the result fails with QuorumException on timeout.
+     */
+    @NotNull
+    public static <R, T> CompletableFuture<R> hedged(@NotNull final Context<R, T> ctx, @NotNull final List<String> friends, final int quorum,
+                                                     final long hedgeDelay, final long timeout, @NotNull final Sender<T> sender) {
+        final CompletableFuture<R> result = within(ctx.toCompletableFuture(), timeout);
+        int sent = 0;
+        while (sent < Math.min(quorum, friends.size())) {
+            ctx.addFuture(sender.send(friends.get(sent++)));
+        }
+        if (sent < friends.size()) {
+            hedge(ctx, result, friends, sent, hedgeDelay, sender);
+        }
+        return result;
     }
 
-    public static interface Context<R, T> extends Future<R> {
+    /**
+     * Fails the future with QuorumException unless it's completed in timeout ms.
+     */
+    @NotNull
+    public static <R> CompletableFuture<R> within(@NotNull final CompletableFuture<R> future, final long timeout) {
+        if (!future.isDone()) {
+            final ScheduledFuture<?> timer = schedule(() -> future.completeExceptionally(new QuorumException("quorum not reached")),
+                    Math.max(0, timeout));
+            future.whenComplete((r, t) -> timer.cancel(false));
+        }
+        return future;
+    }
 
-        Context<R, T> setFutures(@NotNull final Future... futures);
+    private static <R, T> void hedge(@NotNull final Context<R, T> ctx, @NotNull final CompletableFuture<R> result,
+                                     @NotNull final List<String> friends, final int next, final long hedgeDelay, @NotNull final Sender<T> sender) {
+        schedule(() -> {
+            if (!result.isDone()) {
+                log.info("Hedge request to: " + friends.get(next));
+                ctx.addFuture(sender.send(friends.get(next)));
+                if (next + 1 < friends.size()) {
+                    hedge(ctx, result, friends, next + 1, hedgeDelay, sender);
+                }
+            }
+        }, hedgeDelay);
+    }
 
-        ITypeListener<T> getListener();
+    @NotNull
+    private static ScheduledFuture<?> schedule(@NotNull final Runnable task, final long delay) {
+        return TIMER.schedule(() -> TIMER_TASKS.execute(task), delay, TimeUnit.MILLISECONDS);
+    }
 
-        ITypeListener<T> getListener(@Nullable ErrorHandler<T> handler);
+    public static interface Sender<T> {
 
+        Future<T> send(@NotNull String friend);
     }
 
     public static interface ResultFilter<R, T> {
@@ -139,17 +159,193 @@ public class AsyncQuorum {
         void handleFailed(Future<T> failed, ExecutionException t);
     }
 
-    private static class Status<R> {
+    private static class QuorumContext<R, T> implements Context<R, T> {
 
-        @Nullable
-        private final R result;
-        private final int success;
-        private final int fail;
-
-        private Status(@Nullable final R result, final int success, final int fail) {
-            this.result = result;
-            this.success = success;
-            this.fail = fail;
+        private final int quorum;
+        private final int total;
+        private final ResultFilter<R, T> filter;
+        private final GenericType<T> type;
+        private final CompletableFuture<R> promise = new CompletableFuture<>();
+        // NO_FUTURES once done, requests added after that are cancelled at once
+        private final AtomicReference<Future<?>[]> futures = new AtomicReference<>();
+        // guarded by this
+        private R result;
+        private int success;
+        private int fail;
+
+        private QuorumContext(final int quorum, final int total, @NotNull final ResultFilter<R, T> filter, @Nullable final GenericType<T> type) {
+            this.quorum = quorum;
+            this.total = total;
+            this.filter = filter;
+            this.type = type;
+            if (quorum <= 0) {
+                promise.complete(null); // nothing to wait for, responses are still folded
+            }
+        }
+
+        @Override
+        public Context<R, T> setFutures(@NotNull final Future<?>... f) {
+            if (!futures.compareAndSet(null, f)) {
+                if (futures.get() != NO_FUTURES) {
+                    throw new IllegalStateException("Futures already set");
+                }
+                for (final Future<?> future : f) {
+                    future.cancel(true); // done before all requests were sent
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Context<R, T> addFuture(@NotNull final Future<?> f) {
+            while (true) {
+                final Future<?>[] current = futures.get();
+                if (current == NO_FUTURES) {
+                    f.cancel(true);
+                    return this;
+                }
+                final Future<?>[] updated;
+                if (current == null) {
+                    updated = new Future<?>[]{f};
+                } else {
+                    updated = Arrays.copyOf(current, current.length + 1);
+                    updated[current.length] = f;
+                }
+                if (futures.compareAndSet(current, updated)) {
+                    return this;
+                }
+            }
+        }
+
+        @Override
+        public boolean await(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+            try {
+                promise.get(timeout, unit);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException | CancellationException ignore) {
+                // can't be reached anymore
+            }
+            return true;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean result = promise.cancel(mayInterruptIfRunning);
+            cancelRequests(mayInterruptIfRunning);
+            return result;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return promise.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return promise.isDone();
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            try {
+                return promise.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+
+        /**
+         * @throws QuorumException if quorum isn't reached in time.
+         */
+        @Override
+        public R get(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return promise.get(timeout, unit);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (TimeoutException e) {
+                throw new QuorumException("quorum not reached");
+            }
+        }
+
+        @Override
+        public ITypeListener<T> getListener() {
+            return getListener(null);
+        }
+
+        @Override
+        public ITypeListener<T> getListener(@Nullable final ErrorHandler<T> handler) {
+            return new TypeListener<T>(type) {
+                @Override
+                public void onComplete(final Future<T> f) throws InterruptedException {
+                    final T r;
+                    try {
+                        r = f.get();
+                    } catch (ExecutionException e) {
+                        if (handler != null) {
+                            handler.handleFailed(f, e);
+                        }
+                        failed();
+                        return;
+                    } catch (CancellationException c) {
+                        if (handler != null) {
+                            handler.handleFailed(f, null);
+                        }
+                        return;
+                    }
+                    succeeded(r);
+                }
+            };
+        }
+
+        @Override
+        public CompletableFuture<R> toCompletableFuture() {
+            if (quorum > 0) {
+                promise.whenComplete((r, t) -> cancelRequests(true));
+            }
+            return promise;
+        }
+
+        private void succeeded(@Nullable final T r) {
+            final R folded;
+            synchronized (this) {
+                result = filter.fold(result, r);
+                if (++success != quorum) {
+                    return;
+                }
+                folded = result;
+            }
+            if (promise.complete(folded)) {
+                cancelRequests(true);
+            }
+        }
+
+        private void failed() {
+            synchronized (this) {
+                if (++fail < total - quorum + 1) {
+                    return;
+                }
+            }
+            if (promise.completeExceptionally(new QuorumException("quorum not reached"))) {
+                cancelRequests(true);
+            }
+        }
+
+        private void cancelRequests(final boolean mayInterruptIfRunning) {
+            final Future<?>[] f = futures.getAndSet(NO_FUTURES);
+            if (f != null) {
+                for (final Future<?> future : f) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+            }
+        }
+
+        private static ExecutionException unwrap(@NotNull final ExecutionException e) {
+            if (e.getCause() instanceof QuorumException) {
+                throw (QuorumException) e.getCause();
+            }
+            return e;
         }
     }
 
@@ -2,10 +2,6 @@ package jetbrains.exodus.distrubuted.server;
 
 import com.sun.jersey.api.client.ClientHandlerException;
 import jetbrains.exodus.core.dataStructures.Pair;
-import jetbrains.exodus.database.ByteIterable;
-import jetbrains.exodus.database.impl.bindings.LongBinding;
-import jetbrains.exodus.database.impl.bindings.StringBinding;
-import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
 import jetbrains.exodus.database.persistence.Store;
 import jetbrains.exodus.database.persistence.Transaction;
 import jetbrains.exodus.database.persistence.TransactionalComputable;
@@ -15,28 +11,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
-import java.text.DateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class BackgroundReplicator {
 
     private static Logger log = LoggerFactory.getLogger(BackgroundReplicator.class);
     private static String fakeFriend = "http://fake.friend/";
+    private static final DataChunk END_OF_DATA = new DataChunk(Collections.<NameSpaceKVIterableTuple>emptyList(), null);
+    private static final DataChunk FETCH_FAILED = new DataChunk(Collections.<NameSpaceKVIterableTuple>emptyList(), null);
 
     private final BlockingQueue<String> friendsQueue;
-    private final Thread replicatingThread;
+    private final Set<String> queuedFriends;
+    private final Thread[] replicatingThreads;
+    private final ReplicationWatermarks watermarks;
+    private final Semaphore inFlightBytes;
+    private final int maxInFlightBytes;
 
     public BackgroundReplicator() {
+        final App app = App.getInstance();
         friendsQueue = new LinkedBlockingQueue<>();
-        replicatingThread = new Thread(new ReplicationLoop());
-        App.getInstance().addFriendsListener(new App.FriendsListener() {
+        queuedFriends = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        watermarks = new ReplicationWatermarks(app);
+        maxInFlightBytes = app.replicationInFlightBytes;
+        inFlightBytes = new Semaphore(maxInFlightBytes);
+        replicatingThreads = new Thread[Math.max(1, app.replicationWorkers)];
+        app.addFriendsListener(new App.FriendsListener() {
             @Override
             public void friendAdded(@NotNull final String friend) {
-                friendsQueue.offer(friend);
+                enqueue(friend);
             }
 
             @Override
@@ -44,17 +47,35 @@ public class BackgroundReplicator {
                 // nothing to do
             }
         });
-        replicatingThread.setDaemon(true);
-        replicatingThread.setName("repl");
-        replicatingThread.start();
+        for (int i = 0; i < replicatingThreads.length; i++) {
+            final Thread replicatingThread = new Thread(new ReplicationLoop());
+            replicatingThread.setDaemon(true);
+            replicatingThread.setName("repl-" + i);
+            replicatingThread.start();
+            replicatingThreads[i] = replicatingThread;
+        }
     }
 
     public void close() {
-        friendsQueue.offer(fakeFriend);
-        try {
-            replicatingThread.join();
-        } catch (InterruptedException e) {
-            log.error("Failed to join replication loop thread", e);
+        for (int i = 0; i < replicatingThreads.length; i++) {
+            friendsQueue.offer(fakeFriend);
+        }
+        for (final Thread replicatingThread : replicatingThreads) {
+            try {
+                replicatingThread.join();
+            } catch (InterruptedException e) {
+                log.error("Failed to join replication loop thread", e);
+            }
+        }
+        watermarks.close();
+    }
+
+    private void enqueue(@NotNull final String friend) {
+        // a friend already waiting or being replicated is not queued once more
+        if (queuedFriends.add(friend)) {
+            friendsQueue.offer(friend);
+        } else {
+            log.info("Replication of [" + friend + "] is already scheduled");
         }
     }
 
@@ -66,7 +87,6 @@ public class BackgroundReplicator {
         }
     }
 
-    @SuppressWarnings("unchecked")
     private class ReplicationLoop implements Runnable {
 
         @Override
@@ -79,9 +99,10 @@ public class BackgroundReplicator {
             String friend;
             //noinspection StringEquality
             while ((friend = takeFriend()) != fakeFriend) {
+                boolean resume = false;
                 try {
-                    // at first replicate friends
-                    if (!URI.create(friend).equals(baseURI)) {
+                    // at first replicate friends, unless membership is gossiped
+                    if (!URI.create(friend).equals(baseURI) && (app.getGossip() == null || !conn.supports(friend, GossipMembership.PROTOCOL))) {
                         log.info("Replicating friends of [" + friend + "] started");
                         try {
                             app.addFriends(conn.friends(friend, baseURI.toString(), 10000));
@@ -93,64 +114,233 @@ public class BackgroundReplicator {
 
                     // then replicate data
                     log.info("Replicating data of [" + friend + "] started");
-                    log.info("Computing timestamp bound");
-                    final long lastTimeStamp = app.getEnvironment().computeInTransaction(new TransactionalComputable<Long>() {
-                        @Override
-                        public Long compute(@NotNull final Transaction txn) {
-                            long result = 0;
-                            for (final String ns : app.getNamespaces(txn)) {
-                                if (result == 0) {
-                                    result = Long.MAX_VALUE;
-                                }
-                                final ArrayByteIterable nsKey = StringBinding.stringToEntry(ns);
-                                final ByteIterable timeStampEntry = app.getNamespacesIdx().get(txn, nsKey);
-                                if (timeStampEntry != null) {
-                                    final long nsTimestamp = LongBinding.compressedEntryToLong(timeStampEntry);
-                                    if (nsTimestamp < result) {
-                                        result = nsTimestamp;
-                                    }
-                                }
-                            }
-                            return result;
-                        }
-                    });
-                    if (lastTimeStamp == Long.MAX_VALUE) {
-                        log.info("No data to replicate from [" + friend + "]");
-                    } else {
-                        log.info("Getting data from [" + friend + "] more recent than " + DateFormat.getDateTimeInstance().format(new Date(lastTimeStamp)));
-                        final List<NameSpaceKVIterableTuple>[] data = new List[]{null};
-                        try {
-                            data[0] = conn.data(friend, lastTimeStamp, 10000);
-                        } catch (TimeoutException e) {
-                            log.warn("Replicating data of [" + friend + "] timed out");
-                        } catch (Throwable t) {
-                            log.error("Replicating data of [" + friend + "] failed", t);
-                        }
-                        if (data[0] != null) {
-                            log.info("Saving data of [" + friend + "]");
-                            app.getEnvironment().executeInTransaction(new TransactionalExecutable() {
-                                @Override
-                                public void execute(@NotNull final Transaction txn) {
-                                    for (final NameSpaceKVIterableTuple nsTuple : data[0]) {
-                                        final String ns = nsTuple.getNamespace();
-                                        final Pair<Store, Store> nsStores = app.getNsStores(ns);
-                                        for (final KeyValueTuple dataTuple : nsTuple.getData()) {
-                                            Database.putLocally(txn, nsStores.getFirst(), nsStores.getSecond(), app,
-                                                    dataTuple.getKey(), dataTuple.getValue(), dataTuple.getTimeStamp());
-                                        }
-                                    }
-                                }
-                            });
-                        }
-                    }
+                    final DataRequest request = getDataRequest(app, friend);
+                    log.info("Getting data from [" + friend + "] using " + request.getWatermarks().size() + " namespace watermarks");
+                    resume = !replicateData(app, friend, request);
                     log.info("Replicating data of [" + friend + "] finished");
                 } catch (ClientHandlerException t) {
                     log.warn("Can't reach friend [" + friend + "]: " + t.getMessage());
                 } catch (Throwable t) {
                     log.error("Background Replicator error, friend [" + friend + "]", t);
+                } finally {
+                    queuedFriends.remove(friend);
+                }
+                if (resume) {
+                    log.info("Replication from [" + friend + "] interrupted, will resume from checkpoint");
+                    enqueue(friend);
                 }
             }
             log.info("Background Replicator finished");
         }
+
+        /**
+         * Asks for entries not older than watermarks of entries pulled from the friend before, or of local
+         * entries if nothing was pulled yet. Namespaces having no watermark are requested entirely.
+         */
+        @NotNull
+        private DataRequest getDataRequest(@NotNull final App app, @NotNull final String friend) {
+            final Map<String, Long> result = app.computeInReadonlyTransaction(new TransactionalComputable<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> compute(@NotNull final Transaction txn) {
+                    final Map<String, Long> result = new HashMap<>();
+                    for (final String ns : app.getNamespaces(txn)) {
+                        final long nsTimeStamp = app.getNamespaceTimeStamp(ns, txn);
+                        if (nsTimeStamp != 0) {
+                            result.put(ns, nsTimeStamp);
+                        }
+                    }
+                    return result;
+                }
+            });
+            result.putAll(watermarks.get(friend));
+            final URI baseURI = app.getBaseURI();
+            return new DataRequest(0, result, null, baseURI == null ? null : baseURI.toString());
+        }
+
+        /**
+         * Chunks are fetched by a separate thread into a bounded queue while this one saves them in
+         * transactions of at most replicationBatchKeys keys or replicationBatchBytes bytes, each of them
+         * advancing watermarks of the friend.
+         *
+         * @return false if the pull was interrupted after some progress and is worth resuming
+         */
+        private boolean replicateData(@NotNull final App app, @NotNull final String friend, @NotNull final DataRequest request) {
+            final ChunkFetcher fetcher = new ChunkFetcher(app, friend, request);
+            final Thread fetchingThread = new Thread(fetcher, "repl-fetch");
+            fetchingThread.setDaemon(true);
+            fetchingThread.start();
+            final List<Pair<String, KeyValueTuple>> batch = new ArrayList<>();
+            long batchBytes = 0;
+            try {
+                while (true) {
+                    final DataChunk chunk = fetcher.take();
+                    if (chunk == END_OF_DATA) {
+                        saveBatch(app, friend, batch);
+                        return true;
+                    }
+                    if (chunk == FETCH_FAILED) {
+                        saveBatch(app, friend, batch);
+                        return fetcher.chunksFetched == 0;
+                    }
+                    try {
+                        for (final NameSpaceKVIterableTuple nsTuple : chunk.getData()) {
+                            for (final KeyValueTuple dataTuple : nsTuple.getData()) {
+                                batch.add(new Pair<>(nsTuple.getNamespace(), dataTuple));
+                                batchBytes += Utils.getUtf8Length(dataTuple.getKey()) + Utils.getUtf8Length(dataTuple.getValue());
+                                if (batch.size() >= app.replicationBatchKeys || batchBytes >= app.replicationBatchBytes) {
+                                    saveBatch(app, friend, batch);
+                                    batchBytes = 0;
+                                }
+                            }
+                        }
+                    } finally {
+                        inFlightBytes.release(getInFlightPermits(chunk));
+                    }
+                }
+            } finally {
+                fetcher.cancel();
+            }
+        }
+
+        private void saveBatch(@NotNull final App app, @NotNull final String friend,
+                               @NotNull final List<Pair<String, KeyValueTuple>> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            log.info("Saving " + batch.size() + " keys of [" + friend + "]");
+            final Map<String, Pair<Store, Store>> nsStores = new HashMap<>();
+            app.getEnvironment().executeInTransaction(new TransactionalExecutable() {
+                @Override
+                public void execute(@NotNull final Transaction txn) {
+                    for (final Pair<String, KeyValueTuple> item : batch) {
+                        final String ns = item.getFirst();
+                        Pair<Store, Store> stores = nsStores.get(ns);
+                        if (stores == null) {
+                            stores = app.getNsStores(ns);
+                            nsStores.put(ns, stores);
+                        }
+                        final KeyValueTuple dataTuple = item.getSecond();
+                        if (!app.isReplica(ns, dataTuple.getKey())) {
+                            continue;
+                        }
+                        Database.putLocally(txn, stores.getFirst(), stores.getSecond(), app,
+                                dataTuple.getKey(), dataTuple.getValue(), dataTuple.getTimeStamp());
+                    }
+                    // entries of a namespace come ordered by timestamp, so the last one is the most recent
+                    final Map<String, Long> lastTimeStamps = new HashMap<>();
+                    for (final Pair<String, KeyValueTuple> item : batch) {
+                        lastTimeStamps.put(item.getFirst(), item.getSecond().getTimeStamp());
+                    }
+                    for (final Map.Entry<String, Long> entry : lastTimeStamps.entrySet()) {
+                        watermarks.put(txn, friend, entry.getKey(), entry.getValue());
+                    }
+                }
+            });
+            batch.clear();
+        }
+    }
+
+    private int getInFlightPermits(@NotNull final DataChunk chunk) {
+        long result = 0;
+        for (final NameSpaceKVIterableTuple nsTuple : chunk.getData()) {
+            for (final KeyValueTuple dataTuple : nsTuple.getData()) {
+                result += Utils.getUtf8Length(dataTuple.getKey()) + Utils.getUtf8Length(dataTuple.getValue());
+            }
+        }
+        return (int) Math.min(result, maxInFlightBytes);
+    }
+
+    /**
+     * Fetches chunks one by one, each of them holding its size in permits of the global in-flight bytes
+     * limit until the replication thread has taken it over into a batch.
+     */
+    private class ChunkFetcher implements Runnable {
+
+        private final int dataChunkBytes;
+        private final String friend;
+        private final DataRequest request;
+        private final BlockingQueue<DataChunk> chunks;
+        private volatile int chunksFetched;
+        private volatile boolean cancelled;
+
+        private ChunkFetcher(@NotNull final App app, @NotNull final String friend, @NotNull final DataRequest request) {
+            dataChunkBytes = app.dataChunkBytes;
+            this.friend = friend;
+            this.request = request;
+            chunks = new ArrayBlockingQueue<>(app.replicationPipelineDepth);
+        }
+
+        @Override
+        public void run() {
+            final RemoteConnector conn = RemoteConnector.getInstance();
+            final int expectedPermits = Math.min(dataChunkBytes, maxInFlightBytes);
+            DataChunk last = FETCH_FAILED;
+            ContinuationToken next = request.getFrom();
+            try {
+                do {
+                    inFlightBytes.acquire(expectedPermits);
+                    final DataChunk chunk;
+                    try {
+                        chunk = conn.data(friend, new DataRequest(request.getTimeStamp(), request.getWatermarks(), next, request.getRequester()), 10000);
+                    } catch (Throwable t) {
+                        inFlightBytes.release(expectedPermits);
+                        throw t;
+                    }
+                    final int permits = getInFlightPermits(chunk);
+                    if (permits < expectedPermits) {
+                        inFlightBytes.release(expectedPermits - permits);
+                    } else if (permits > expectedPermits && !inFlightBytes.tryAcquire(permits - expectedPermits)) {
+                        // not waiting for the rest while holding the reservation, other fetchers could do the same
+                        inFlightBytes.release(expectedPermits);
+                        inFlightBytes.acquire(permits);
+                    }
+                    if (!offer(chunk)) {
+                        inFlightBytes.release(permits);
+                        return;
+                    }
+                    chunksFetched++;
+                    next = chunk.getNext();
+                } while (next != null);
+                last = END_OF_DATA;
+            } catch (TimeoutException e) {
+                log.warn("Replicating data of [" + friend + "] timed out");
+            } catch (ClientHandlerException t) {
+                log.warn("Can't reach friend [" + friend + "]: " + t.getMessage());
+            } catch (Throwable t) {
+                log.error("Replicating data of [" + friend + "] failed", t);
+            }
+            offer(last);
+        }
+
+        private boolean offer(@NotNull final DataChunk chunk) {
+            try {
+                while (!cancelled) {
+                    if (chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+                        // the replication thread could have stopped taking chunks meanwhile
+                        return !cancelled || !chunks.remove(chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.warn("Interrupted fetching data of [" + friend + "]");
+            }
+            return false;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            DataChunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                inFlightBytes.release(getInFlightPermits(chunk));
+            }
+        }
+
+        @NotNull
+        private DataChunk take() {
+            try {
+                return chunks.take();
+            } catch (InterruptedException e) {
+                return FETCH_FAILED;
+            }
+        }
     }
 }
@@ -0,0 +1,338 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact format of node-to-node messages. A message starts with the format version followed by
+ * the message itself; numbers are written as varints, strings as varint length prefixed UTF-8 bytes,
+ * every key/value entry is a (key, timestamp, value) frame. Buffers are reused per thread.
+ */
+public class BinaryCodec {
+
+    public static final String PROTOCOL = "binary";
+    public static final String MEDIA_TYPE = "application/x-dexodus-binary";
+
+    private static final int VERSION = 1;
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+    private static final ThreadLocal<Input> INPUT = new ThreadLocal<Input>() {
+        @Override
+        protected Input initialValue() {
+            return new Input();
+        }
+    };
+
+    private BinaryCodec() {
+    }
+
+    public static boolean isSupported(@NotNull final Class<?> type) {
+        return type == ValueTimeStampTuple.class || type == ValueRecord.class || type == DataChunk.class || type == DataRequest.class ||
+                type == WriteBatch.class || type == WriteBatchResult.class;
+    }
+
+    public static void write(@NotNull final Object message, @NotNull final OutputStream out) throws IOException {
+        final Output output = OUTPUT.get();
+        try {
+            encode(message, output);
+            output.writeTo(out);
+        } finally {
+            output.reset();
+        }
+    }
+
+    @NotNull
+    public static Object read(@NotNull final Class<?> type, @NotNull final InputStream in) throws IOException {
+        final Input input = INPUT.get();
+        try {
+            input.readFrom(in);
+            return decode(type, input);
+        } finally {
+            input.reset();
+        }
+    }
+
+    @NotNull
+    public static byte[] encode(@NotNull final Object message) {
+        final Output output = OUTPUT.get();
+        try {
+            encode(message, output);
+            return Arrays.copyOf(output.buf, output.length);
+        } finally {
+            output.reset();
+        }
+    }
+
+    @NotNull
+    public static Object decode(@NotNull final Class<?> type, @NotNull final byte[] message) throws IOException {
+        final Input input = INPUT.get();
+        try {
+            input.buf = message;
+            input.length = message.length;
+            return decode(type, input);
+        } finally {
+            input.reset();
+        }
+    }
+
+    private static void encode(@NotNull final Object message, @NotNull final Output out) {
+        out.writeVarLong(VERSION);
+        if (message instanceof ValueTimeStampTuple) {
+            final ValueTimeStampTuple tuple = (ValueTimeStampTuple) message;
+            out.writeVarLong(tuple.getTimeStamp());
+            if (tuple instanceof ValueRecord) {
+                out.writeBytes(((ValueRecord) tuple).getUtf8());
+            } else {
+                out.writeString(tuple.getValue());
+            }
+        } else if (message instanceof DataChunk) {
+            final DataChunk chunk = (DataChunk) message;
+            writeData(chunk.getData(), out);
+            writeToken(chunk.getNext(), out);
+        } else if (message instanceof WriteBatch) {
+            writeData(((WriteBatch) message).getData(), out);
+        } else if (message instanceof WriteBatchResult) {
+            final int[] statuses = ((WriteBatchResult) message).getStatuses();
+            out.writeVarLong(statuses.length);
+            for (final int status : statuses) {
+                out.writeVarLong(status);
+            }
+        } else if (message instanceof DataRequest) {
+            final DataRequest request = (DataRequest) message;
+            out.writeVarLong(request.getTimeStamp());
+            out.writeVarLong(request.getWatermarks().size());
+            for (final Map.Entry<String, Long> watermark : request.getWatermarks().entrySet()) {
+                out.writeString(watermark.getKey());
+                out.writeVarLong(watermark.getValue());
+            }
+            writeToken(request.getFrom(), out);
+            final String requester = request.getRequester();
+            out.writeString(requester == null ? "" : requester);
+        } else {
+            throw new IllegalArgumentException("Can't encode " + message.getClass().getName());
+        }
+    }
+
+    private static Object decode(@NotNull final Class<?> type, @NotNull final Input in) throws IOException {
+        final long version = in.readVarLong();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary message version: " + version);
+        }
+        if (type == ValueTimeStampTuple.class) {
+            final long timeStamp = in.readVarLong();
+            return new ValueRecord(timeStamp, in.readBytes());
+        } else if (type == DataChunk.class) {
+            final List<NameSpaceKVIterableTuple> data = readData(in);
+            return new DataChunk(data, readToken(in));
+        } else if (type == WriteBatch.class) {
+            return new WriteBatch(readData(in));
+        } else if (type == WriteBatchResult.class) {
+            final int[] statuses = new int[in.readSize()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = (int) in.readVarLong();
+            }
+            return new WriteBatchResult(statuses);
+        } else if (type == DataRequest.class) {
+            final long timeStamp = in.readVarLong();
+            final int count = in.readSize();
+            final Map<String, Long> watermarks = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String ns = in.readString();
+                watermarks.put(ns, in.readVarLong());
+            }
+            final ContinuationToken from = readToken(in);
+            final String requester = in.readString();
+            return new DataRequest(timeStamp, watermarks, from, requester.isEmpty() ? null : requester);
+        }
+        throw new IllegalArgumentException("Can't decode " + type.getName());
+    }
+
+    private static void writeData(@NotNull final List<NameSpaceKVIterableTuple> data, @NotNull final Output out) {
+        out.writeVarLong(data.size());
+        for (final NameSpaceKVIterableTuple nsTuple : data) {
+            out.writeString(nsTuple.getNamespace());
+            out.writeVarLong(nsTuple.getData().size());
+            for (final KeyValueTuple tuple : nsTuple.getData()) {
+                out.writeString(tuple.getKey());
+                out.writeVarLong(tuple.getTimeStamp());
+                out.writeString(tuple.getValue());
+            }
+        }
+    }
+
+    @NotNull
+    private static List<NameSpaceKVIterableTuple> readData(@NotNull final Input in) throws IOException {
+        final int nsCount = in.readSize();
+        final List<NameSpaceKVIterableTuple> result = new ArrayList<>(nsCount);
+        for (int i = 0; i < nsCount; i++) {
+            final String ns = in.readString();
+            final int count = in.readSize();
+            final List<KeyValueTuple> nsData = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                final String key = in.readString();
+                final long timeStamp = in.readVarLong();
+                nsData.add(new KeyValueTuple(key, in.readString(), timeStamp));
+            }
+            result.add(new NameSpaceKVIterableTuple(ns, nsData));
+        }
+        return result;
+    }
+
+    private static void writeToken(@Nullable final ContinuationToken token, @NotNull final Output out) {
+        if (token == null) {
+            out.writeVarLong(0);
+        } else {
+            out.writeVarLong(1);
+            out.writeString(token.getNamespace());
+            out.writeVarLong(token.getTimeStamp());
+            out.writeString(token.getKey());
+        }
+    }
+
+    @Nullable
+    private static ContinuationToken readToken(@NotNull final Input in) throws IOException {
+        if (in.readVarLong() == 0) {
+            return null;
+        }
+        final String ns = in.readString();
+        final long timeStamp = in.readVarLong();
+        return new ContinuationToken(ns, timeStamp, in.readString());
+    }
+
+    private static class Output {
+
+        private byte[] buf = new byte[4096];
+        private int length;
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+        }
+
+        private void writeString(@NotNull final String value) {
+            final int chars = value.length();
+            // fast path for ascii strings, everything else is encoded by the jdk
+            ensureCapacity(chars + 5);
+            final int start = length;
+            writeVarLong(chars);
+            final int prefix = length - start;
+            for (int i = 0; i < chars; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    length = start;
+                    writeBytes(value.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buf[start + prefix + i] = (byte) c;
+            }
+            length += chars;
+        }
+
+        private void writeBytes(@NotNull final byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (length + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+            }
+        }
+
+        private void writeTo(@NotNull final OutputStream out) throws IOException {
+            out.write(buf, 0, length);
+        }
+
+        private void reset() {
+            length = 0;
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[4096];
+            }
+        }
+    }
+
+    private static class Input {
+
+        private byte[] buf;
+        private byte[] ownBuf = new byte[4096];
+        private int length;
+        private int position;
+
+        private void readFrom(@NotNull final InputStream in) throws IOException {
+            buf = ownBuf;
+            int read;
+            while ((read = in.read(buf, length, buf.length - length)) != -1) {
+                length += read;
+                if (length == buf.length) {
+                    buf = ownBuf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+        }
+
+        private long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= length) {
+                    throw new IOException("Unexpected end of binary message");
+                }
+                final byte b = buf[position++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint in binary message");
+        }
+
+        private int readSize() throws IOException {
+            final long result = readVarLong();
+            if (result < 0 || result > length - position) {
+                throw new IOException("Malformed size in binary message: " + result);
+            }
+            return (int) result;
+        }
+
+        @NotNull
+        private String readString() throws IOException {
+            final int size = readSize();
+            final String result = new String(buf, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return result;
+        }
+
+        @NotNull
+        private byte[] readBytes() throws IOException {
+            final int size = readSize();
+            final byte[] result = Arrays.copyOfRange(buf, position, position + size);
+            position += size;
+            return result;
+        }
+
+        private void reset() {
+            buf = null;
+            length = 0;
+            position = 0;
+            if (ownBuf.length > MAX_RETAINED_BUFFER) {
+                ownBuf = new byte[4096];
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package jetbrains.exodus.distrubuted.server;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Plugs BinaryCodec into Jersey both on server and client side.
+ */
+@Provider
+@Consumes(BinaryCodec.MEDIA_TYPE)
+@Produces(BinaryCodec.MEDIA_TYPE)
+public class BinaryProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+    public static final MediaType MEDIA_TYPE = MediaType.valueOf(BinaryCodec.MEDIA_TYPE);
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return BinaryCodec.isSupported(type) && MEDIA_TYPE.isCompatible(mediaType);
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+        return BinaryCodec.read(type, entityStream);
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return BinaryCodec.isSupported(type) && MEDIA_TYPE.isCompatible(mediaType);
+    }
+
+    @Override
+    public long getSize(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        BinaryCodec.write(o, entityStream);
+    }
+}
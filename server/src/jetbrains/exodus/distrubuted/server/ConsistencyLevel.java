@@ -0,0 +1,85 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.Locale;
+
+/**
+ * How many replicas have a write when it's acknowledged. With ONE a coordinator which is a replica of the key
+ * answers right after the local commit and friends get the write from the outbound replication queue, QUORUM
+ * waits for friendDegree friends, ALL for every replica of the key. Requests are sent to at most replication degree
+ * friends except with ALL, which sends them to every replica friend.
+ * For reads it's how many friends are asked besides the local store: none with LOCAL, one with ONE and so on,
+ * the newest value wins.
+ * Requested by the "consistency" query parameter or the X-Consistency header.
+ */
+public enum ConsistencyLevel {
+
+    LOCAL, ONE, QUORUM, ALL;
+
+    public static final String PARAM = "consistency";
+    public static final String HEADER = "X-Consistency";
+
+    /**
+     * @return number of friends to send a request to out of replica friends of the key.
+     */
+    public int getFriends(final int degree, final int friends) {
+        return this == ALL ? friends : Math.min(degree, friends);
+    }
+
+    public int getQuorum(final int friendDegree, final int friends) {
+        switch (this) {
+            case LOCAL:
+                return 0;
+            case ONE:
+                return Math.min(1, friends);
+            case QUORUM:
+                return Math.min(friendDegree, friends);
+            default:
+                return friends;
+        }
+    }
+
+    /**
+     * @return level of the query parameter if any, of the header otherwise.
+     */
+    @NotNull
+    public static ConsistencyLevel parseRead(@Nullable final String param, @Nullable final String header,
+                                             @NotNull final ConsistencyLevel defaultLevel) {
+        return parse(param != null ? param : header, defaultLevel);
+    }
+
+    /**
+     * Same as parseRead, but a write is always replicated, so LOCAL isn't accepted.
+     */
+    @NotNull
+    public static ConsistencyLevel parseWrite(@Nullable final String param, @Nullable final String header,
+                                              @NotNull final ConsistencyLevel defaultLevel) {
+        final String value = param != null ? param : header;
+        final ConsistencyLevel result = parse(value, defaultLevel);
+        if (result == LOCAL) {
+            throw badRequest("Consistency level isn't applicable to writes: " + value);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ConsistencyLevel parse(@Nullable final String value, @NotNull final ConsistencyLevel defaultLevel) {
+        if (value == null) {
+            return defaultLevel;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw badRequest("Unknown consistency level: " + value);
+        }
+    }
+
+    @NotNull
+    private static WebApplicationException badRequest(@NotNull final String message) {
+        return new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(message).build());
+    }
+}
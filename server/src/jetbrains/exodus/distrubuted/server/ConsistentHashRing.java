@@ -0,0 +1,162 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Immutable consistent hash ring of nodes, each node has virtualNodes points on the ring. Replicas of
+ * a key are the first distinct nodes clockwise from the key's hash, so adding or removing a node moves
+ * about 1/N of keys only.
+ */
+public class ConsistentHashRing {
+
+    private final Set<String> nodes;
+    private final long[] points;
+    private final String[] pointNodes;
+
+    public ConsistentHashRing(@NotNull final Collection<String> nodes, final int virtualNodes) {
+        this.nodes = new HashSet<>(nodes);
+        final List<Map.Entry<Long, String>> entries = new ArrayList<>(nodes.size() * virtualNodes);
+        for (final String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                entries.add(new AbstractMap.SimpleEntry<>(MerkleTree.mix(MerkleTree.hash(node + '#' + i)), node));
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<Long, String>>() {
+            @Override
+            public int compare(Map.Entry<Long, String> o1, Map.Entry<Long, String> o2) {
+                final int result = Long.compare(o1.getKey(), o2.getKey());
+                return result != 0 ? result : o1.getValue().compareTo(o2.getValue());
+            }
+        });
+        points = new long[entries.size()];
+        pointNodes = new String[entries.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = entries.get(i).getKey();
+            pointNodes[i] = entries.get(i).getValue();
+        }
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean contains(@NotNull final String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * @return at most count distinct nodes responsible for the key, the primary one first.
+     */
+    @NotNull
+    public List<String> getReplicas(@NotNull final String ns, @NotNull final String key, final int count) {
+        final int replicas = Math.min(count, nodes.size());
+        final List<String> result = new ArrayList<>(replicas);
+        if (replicas == 0) {
+            return result;
+        }
+        int i = Arrays.binarySearch(points, getToken(ns, key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        addReplicas(i, replicas, result);
+        return result;
+    }
+
+    /**
+     * @return ranges of tokens [from, to] both nodes are replicas of, ordered by from.
+     */
+    @NotNull
+    public List<long[]> getSharedRanges(@NotNull final String node, @NotNull final String other, final int count) {
+        final int replicas = Math.min(count, nodes.size());
+        final List<long[]> result = new ArrayList<>();
+        final List<String> segmentReplicas = new ArrayList<>(replicas);
+        for (int i = 0; i < points.length; i++) {
+            segmentReplicas.clear();
+            addReplicas(i, replicas, segmentReplicas);
+            if (!segmentReplicas.contains(node) || !segmentReplicas.contains(other)) {
+                continue;
+            }
+            // tokens after the last point wrap around to the first one
+            if (i == 0) {
+                result.add(new long[]{Long.MIN_VALUE, points[0]});
+                if (points[points.length - 1] != Long.MAX_VALUE) {
+                    result.add(new long[]{points[points.length - 1] + 1, Long.MAX_VALUE});
+                }
+            } else if (points[i - 1] != points[i]) {
+                result.add(new long[]{points[i - 1] + 1, points[i]});
+            }
+        }
+        Collections.sort(result, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @param ranges ranges ordered by from as getSharedRanges() returns them.
+     */
+    public static boolean contains(@NotNull final List<long[]> ranges, final long token) {
+        int low = 0;
+        int high = ranges.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long[] range = ranges.get(mid);
+            if (token < range[0]) {
+                high = mid - 1;
+            } else if (token > range[1]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static long getToken(@NotNull final String ns, @NotNull final String key) {
+        return MerkleTree.mix(MerkleTree.hash(ns + '\u0000' + key));
+    }
+
+    private void addReplicas(final int point, final int replicas, @NotNull final List<String> result) {
+        for (int j = 0; result.size() < replicas; j++) {
+            final String node = pointNodes[(point + j) % points.length];
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+    }
+
+    /**
+     * Rough balance check: share of keys every node would be primary for. Usage: ConsistentHashRing [nodes] [vnodes]
+     */
+    public static void main(String[] args) {
+        final int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        final List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add("http://127.0.0.1:" + (9101 + i) + '/');
+        }
+        final ConsistentHashRing ring = new ConsistentHashRing(nodes, virtualNodes);
+        nodes.add("http://127.0.0.1:" + (9101 + nodeCount) + '/');
+        final ConsistentHashRing grown = new ConsistentHashRing(nodes, virtualNodes);
+        final int keys = 100000;
+        final Map<String, Integer> primaries = new TreeMap<>();
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            final String primary = ring.getReplicas("ns", "key" + i, 1).get(0);
+            final Integer count = primaries.get(primary);
+            primaries.put(primary, count == null ? 1 : count + 1);
+            if (!primary.equals(grown.getReplicas("ns", "key" + i, 1).get(0))) {
+                moved++;
+            }
+        }
+        for (final Map.Entry<String, Integer> entry : primaries.entrySet()) {
+            System.out.println(entry.getKey() + ": " + 100.0 * entry.getValue() / keys + "%");
+        }
+        System.out.println("Moved after adding a node: " + 100.0 * moved / keys + "%");
+    }
+}
@@ -0,0 +1,40 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+public class ContinuationToken {
+
+    @NotNull
+    private String namespace;
+    private long timeStamp;
+    @NotNull
+    private String key;
+
+    public ContinuationToken() {
+    }
+
+    public ContinuationToken(@NotNull final String namespace, final long timeStamp, @NotNull final String key) {
+        this.namespace = namespace;
+        this.timeStamp = timeStamp;
+        this.key = key;
+    }
+
+    @NotNull
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    @NotNull
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return namespace + '/' + timeStamp + '/' + key;
+    }
+}
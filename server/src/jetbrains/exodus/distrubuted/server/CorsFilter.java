@@ -17,16 +17,23 @@ public class CorsFilter implements ContainerResponseFilter {
 
     private final List<String> ALLOWED_METHODS = Arrays.asList("OPTIONS", "GET", "POST", "PUT", "DELETE");
 
+    // names and values of headers added to responses to requests with Origin, AsyncFrontEnd adds them too
+    static final String[][] ORIGIN_HEADERS = {
+            {"Access-Control-Allow-Origin", "*"},
+            {"Access-Control-Expose-Headers", "X-Cache-Date"},
+            {"Access-Control-Expose-Headers", "X-Atmosphere-tracking-id"},
+            {"Access-Control-Allow-Credentials", Boolean.TRUE.toString()}
+    };
+
     @Override
     public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
         //System.out.println("filter " + request.getMethod());
 
         if (request.getHeaderValue("Origin") != null) {
             final MultivaluedMap<String, Object> headers = response.getHttpHeaders();
-            headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Expose-Headers", "X-Cache-Date");
-            headers.add("Access-Control-Expose-Headers", "X-Atmosphere-tracking-id");
-            headers.add("Access-Control-Allow-Credentials", Boolean.TRUE.toString());
+            for (final String[] header : ORIGIN_HEADERS) {
+                headers.add(header[0], header[1]);
+            }
         }
 
         if ("OPTIONS".equals(request.getMethod())) {
@@ -35,7 +42,7 @@ public class CorsFilter implements ContainerResponseFilter {
                 headers.add("Access-Control-Allow-Methods", method);
             }
             headers.add("Access-Control-Allow-Headers",
-                    "accept, origin, Content-Type, X-Atmosphere-Framework, X-Cache-Date, X-Atmosphere-tracking-id, X-Atmosphere-Transport, authorization");
+                    "accept, origin, Content-Type, X-Atmosphere-Framework, X-Cache-Date, X-Atmosphere-tracking-id, X-Atmosphere-Transport, authorization, " + ConsistencyLevel.HEADER);
             headers.add("Access-Control-Max-Age", "-1");
 //            res.addHeader("Access-Control-Allow-Credentials", Boolean.TRUE.toString());
         }
@@ -0,0 +1,35 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+public class DataChunk {
+
+    @NotNull
+    private List<NameSpaceKVIterableTuple> data;
+    @Nullable
+    private ContinuationToken next;
+
+    public DataChunk() {
+    }
+
+    public DataChunk(@NotNull final List<NameSpaceKVIterableTuple> data, @Nullable final ContinuationToken next) {
+        this.data = data;
+        this.next = next;
+    }
+
+    @NotNull
+    public List<NameSpaceKVIterableTuple> getData() {
+        return data;
+    }
+
+    /**
+     * @return position of the last returned entry to continue from, or null if there is no more data.
+     */
+    @Nullable
+    public ContinuationToken getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,66 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class DataRequest {
+
+    private long timeStamp;
+    @NotNull
+    private Map<String, Long> watermarks = Collections.emptyMap();
+    @Nullable
+    private ContinuationToken from;
+    @Nullable
+    private String requester;
+
+    public DataRequest() {
+    }
+
+    public DataRequest(final long timeStamp, @NotNull final Map<String, Long> watermarks, @Nullable final ContinuationToken from) {
+        this(timeStamp, watermarks, from, null);
+    }
+
+    public DataRequest(final long timeStamp, @NotNull final Map<String, Long> watermarks,
+                       @Nullable final ContinuationToken from, @Nullable final String requester) {
+        this.timeStamp = timeStamp;
+        this.watermarks = watermarks;
+        this.from = from;
+        this.requester = requester;
+    }
+
+    /**
+     * @return timestamp bound for namespaces having no watermark.
+     */
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * @return per namespace timestamp bounds, entries not older than the bound are requested.
+     */
+    @NotNull
+    public Map<String, Long> getWatermarks() {
+        return watermarks;
+    }
+
+    @Nullable
+    public ContinuationToken getFrom() {
+        return from;
+    }
+
+    /**
+     * @return url of the requesting node, only keys it is a replica of are returned if the data is partitioned.
+     */
+    @Nullable
+    public String getRequester() {
+        return requester;
+    }
+
+    public long getTimeStamp(@NotNull final String ns) {
+        final Long result = watermarks.get(ns);
+        return result == null ? timeStamp : result;
+    }
+}
@@ -1,15 +1,13 @@
 package jetbrains.exodus.distrubuted.server;
 
-import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.async.ITypeListener;
+import com.sun.jersey.api.client.async.TypeListener;
 import jetbrains.exodus.core.dataStructures.Pair;
 import jetbrains.exodus.database.ByteIterable;
-import jetbrains.exodus.database.ByteIterator;
 import jetbrains.exodus.database.impl.bindings.LongBinding;
 import jetbrains.exodus.database.impl.bindings.StringBinding;
 import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
-import jetbrains.exodus.database.impl.iterate.IterableUtils;
-import jetbrains.exodus.database.impl.iterate.LightOutputStream;
 import jetbrains.exodus.database.persistence.Cursor;
 import jetbrains.exodus.database.persistence.Store;
 import jetbrains.exodus.database.persistence.Transaction;
@@ -24,8 +22,13 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -37,6 +40,50 @@ public class Database {
 
     private static Logger log = LoggerFactory.getLogger(Database.class);
 
+    public static final String BATCH_READ_PROTOCOL = "batch-read";
+    public static final String DIGEST_PROTOCOL = "digest";
+    public static final String DATA_PROTOCOL = "data";
+    public static final String REPLICA_WRITE_PROTOCOL = "replica-write";
+
+    // first segment of paths of all resources but the baseline ones, can't be a namespace
+    public static final String SYSTEM_PREFIX = "_sys";
+
+    // first segments of resource paths of two or more segments which aren't namespaces
+    private static final Set<String> RESERVED = new HashSet<>();
+
+    static {
+        for (final Method method : Database.class.getMethods()) {
+            final Path path = method.getAnnotation(Path.class);
+            if (path != null) {
+                final String[] segments = path.value().replaceFirst("^/", "").split("/");
+                if (segments.length > 1 && !segments[0].startsWith("{")) {
+                    RESERVED.add(segments[0]);
+                }
+            }
+        }
+    }
+
+    // order of keys in namespace stores
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return StringBinding.stringToEntry(o1).compareTo(StringBinding.stringToEntry(o2));
+        }
+    };
+
+    /**
+     * @return true if paths starting with the segment are taken by other resources than /{ns}/{key}.
+     */
+    static boolean isReserved(@NotNull final String segment) {
+        return RESERVED.contains(segment);
+    }
+
+    private static void checkWritable(@NotNull final String ns) {
+        if (SYSTEM_PREFIX.equals(ns)) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
+
     @GET
     @Path("/")
     @Produces(MediaType.TEXT_PLAIN)
@@ -47,53 +94,99 @@ public class Database {
     @GET
     @Path("/html/{ns}/{key}")
     @Produces(MediaType.TEXT_HTML)
-    public String doGetHtml(@PathParam("ns") final String ns, @PathParam("key") final String key) {
-        return doGet(ns, key);
+    public String doGetHtml(@PathParam("ns") final String ns, @PathParam("key") final String key,
+                            @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                            @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader) {
+        return doGet(ns, key, consistency, consistencyHeader);
     }
 
     @GET
     @Path("/{ns}/{key}")
     @Produces(MediaType.TEXT_PLAIN)
-    public String doGet(@PathParam("ns") final String ns, @PathParam("key") final String key) {
+    public String doGet(@PathParam("ns") final String ns, @PathParam("key") final String key,
+                        @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                        @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader) {
+        return await(getAsync(ns, key, ConsistencyLevel.parseRead(consistency, consistencyHeader, App.getInstance().readConsistency))).getValue();
+    }
+
+    /**
+     * Reads the value from friends as many as the level requires, doesn't wait for them. Local failures are thrown
+     * at once, LOCAL reads the local store only and completes at once. Unless the level is ALL, the local value is
+     * the result if friends don't answer. Values read from the local store or from friends talking binary
+     * protocol are ValueRecords, their bytes can be passed through.
+     */
+    @NotNull
+    public static CompletableFuture<ValueTimeStampTuple> getAsync(@NotNull final String ns, @NotNull final String key,
+                                                     @NotNull final ConsistencyLevel level) {
         log.info("GET: " + key);
         final ArrayByteIterable keyBytes = StringBinding.stringToEntry(key);
         final App app = App.getInstance();
-        final String[] friends = app.getFriends();
-        app.shuffle(friends);
+        final String[] friends = level == ConsistencyLevel.LOCAL ? new String[0] : app.getReplicaFriends(ns, key);
+        RemoteConnector.getInstance().getLatency().order(friends);
         if (friends.length == 0) {
-            return App.getInstance().computeInTransaction(ns, new NamespaceTransactionalComputable<String>() {
+            final ValueTimeStampTuple result = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<ValueTimeStampTuple>() {
                 @Override
-                public String compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                public ValueTimeStampTuple compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
                     final ByteIterable valueBytes = namespace.get(txn, keyBytes);
-                    if (valueBytes == null) {
-                        log.info("No friends and no data by key: " + key);
-                        throw new WebApplicationException(Response.Status.NOT_FOUND);
-                    }
-                    final ByteIterator itr = valueBytes.iterator();
-                    itr.skip(8); // ignore timestamp
-                    return IterableUtils.readString(itr);
+                    return valueBytes == null ? null : ValueRecord.read(valueBytes);
                 }
             });
+            if (result == null) {
+                log.info("No local data by key: " + key);
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+            return CompletableFuture.completedFuture(result);
+        }
+        final ReadCache cache = app.getReadCache();
+        // values are cached by reads of friendDegree friends at least
+        final ValueTimeStampTuple cached = level == ConsistencyLevel.ALL ? null : cache.get(ns, key);
+        if (cached != null) {
+            log.info("GET served from cache: " + key);
+            return CompletableFuture.completedFuture(cached);
         }
-        final ValueTimeStampTuple seed = App.getInstance().computeInTransaction(ns, new NamespaceTransactionalComputable<ValueTimeStampTuple>() {
+        if (!isCacheable(level)) {
+            return getFromFriendsAsync(ns, key, keyBytes, friends, level);
+        }
+        // reads started before the local value is read, so a concurrent write leaves a tombstone
+        cache.readStarted(ns, key);
+        try {
+            return getFromFriendsAsync(ns, key, keyBytes, friends, level).whenComplete((result, t) -> cache.readFinished(ns, key));
+        } catch (RuntimeException e) {
+            cache.readFinished(ns, key);
+            throw e;
+        }
+    }
+
+    @NotNull
+    private static CompletableFuture<ValueTimeStampTuple> getFromFriendsAsync(@NotNull final String ns, @NotNull final String key,
+                                                                              @NotNull final ArrayByteIterable keyBytes,
+                                                                              @NotNull final String[] friends,
+                                                                              @NotNull final ConsistencyLevel level) {
+        final App app = App.getInstance();
+        final ValueTimeStampTuple seed = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<ValueTimeStampTuple>() {
             @Override
             public ValueTimeStampTuple compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
                 final ByteIterable valueBytes = namespace.get(txn, keyBytes);
-                if (valueBytes == null) {
-                    return null;
-                }
-                final ByteIterator itr = valueBytes.iterator();
-                final long t = IterableUtils.readLong(itr);
-                return new ValueTimeStampTuple(t, IterableUtils.readString(itr));
+                return valueBytes == null ? null : ValueRecord.read(valueBytes);
             }
         });
         if (seed == null) {
             log.warn("No local data by key: " + key);
         }
         final long localTimeStamp = seed == null ? 0 : seed.getTimeStamp();
-        final int maxFriends = Math.min(app.replicationReadDegree, friends.length);
-        AsyncQuorum.Context<ValueTimeStampTuple, ValueTimeStampTuple> ctx =
-                AsyncQuorum.createContext(Math.min(app.friendDegree, maxFriends), maxFriends,
+        final int maxFriends = level.getFriends(app.replicationReadDegree, friends.length);
+        final int quorum = level.getQuorum(app.friendDegree, maxFriends);
+        final List<String> digestFriends = new ArrayList<>(friends.length);
+        for (final String friend : friends) {
+            if (RemoteConnector.getInstance().supports(friend, DIGEST_PROTOCOL)) {
+                digestFriends.add(friend);
+            }
+        }
+        if (digestFriends.size() >= maxFriends) {
+            return getByDigestAsync(ns, key, seed, digestFriends.subList(0, maxFriends), quorum, level);
+        }
+        final AsyncQuorum.Context<ValueTimeStampTuple, ValueTimeStampTuple> ctx =
+                AsyncQuorum.createContext(quorum, maxFriends,
                         new AsyncQuorum.ResultFilter<ValueTimeStampTuple, ValueTimeStampTuple>() {
                             @Nullable
                             @Override
@@ -115,73 +208,226 @@ public class Database {
                             }
                         }, RemoteConnector.REPL_TYPE
                 );
-        int i = 0;
-        final Future[] futures = new Future[maxFriends];
-        for (final String friend : friends) {
-            log.info("Replicate get to: " + friend);
-            futures[i++] = RemoteConnector.getInstance().getAsyncRepl(friend, ns, key, localTimeStamp, ctx.getListener(new AsyncQuorum.ErrorHandler<ValueTimeStampTuple>() {
-                @Override
-                public void handleFailed(Future<ValueTimeStampTuple> failed, ExecutionException t) {
-                    if (t == null) { // null means "cancelled"
-                        log.info("Get REPL cancelled for [" + friend + "]");
-                    } else {
-                        final Throwable cause = t.getCause();
-                        if (cause instanceof UniformInterfaceException) {
-                            if (((UniformInterfaceException)cause).getResponse().getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
-                                return;
+        final FriendsLatency latency = RemoteConnector.getInstance().getLatency();
+        final List<String> chosen = Arrays.asList(friends).subList(0, maxFriends);
+        final AsyncQuorum.Sender<ValueTimeStampTuple> sender = new AsyncQuorum.Sender<ValueTimeStampTuple>() {
+            @Override
+            public Future<ValueTimeStampTuple> send(@NotNull final String friend) {
+                log.info("Replicate get to: " + friend);
+                return RemoteConnector.getInstance().getAsyncRepl(friend, ns, key, localTimeStamp, ctx.getListener(new AsyncQuorum.ErrorHandler<ValueTimeStampTuple>() {
+                    @Override
+                    public void handleFailed(Future<ValueTimeStampTuple> failed, ExecutionException t) {
+                        if (t == null) { // null means "cancelled"
+                            log.info("Get REPL cancelled for [" + friend + "]");
+                        } else {
+                            final Throwable cause = t.getCause();
+                            if (cause instanceof UniformInterfaceException) {
+                                if (((UniformInterfaceException)cause).getResponse().getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+                                    return;
+                                }
                             }
+                            log.warn("Failed request to [" + friend + "]: " + t.getClass().getName() + ":" + t.getMessage());
+                            app.getFailureDetector().reportFailure(friend, t);
                         }
-                        log.warn("Removing [" + friend + "] due to exception " + t.getClass().getName() + ":" + t.getMessage());
-                        app.removeFriends(friend);
                     }
-                }
-            }));
-            if (i >= maxFriends) {
-                break;
+                }));
+            }
+        };
+        return AsyncQuorum.hedged(ctx, chosen, latency.isHedgingEnabled() ? quorum : maxFriends,
+                latency.getHedgeDelay(chosen.subList(0, quorum)), latency.getTimeout(chosen), sender).handle((result, t) -> {
+            if (t != null) {
+                return fallback(ns, key, seed, t, level);
             }
-        }
-        ctx.setFutures(futures);
-        ValueTimeStampTuple result = null;
-        try {
-            result = ctx.get(1000, TimeUnit.MILLISECONDS);
             log.info("Get replicated successfully");
             if (result == null) {
                 log.info("No data by key at all: " + key);
                 throw new WebApplicationException(Response.Status.NOT_FOUND);
             }
-            return result.getValue();
-        } catch (QuorumException q) {
-            log.warn("No quorum reached: " + key);
-            if (seed != null) {
-                return seed.getValue();
+            if (isCacheable(level)) {
+                app.getReadCache().put(ns, key, result);
             }
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new RuntimeException(e);
-        } finally {
-            ctx.cancel(true); // cancel other jobs
-            if (result != null && (seed == null || seed.getTimeStamp() < result.getTimeStamp())) {
-                final String value = result.getValue();
-                final long timeStamp =  result.getTimeStamp();
-                app.executeAsync(new Runnable() {
+            if (seed == null || seed.getTimeStamp() < result.getTimeStamp()) {
+                log.info("Async remember key: " + key);
+                app.writeBack(ns, Collections.singletonList(new KeyValueTuple(key, result.getValue(), result.getTimeStamp())));
+            }
+            return result;
+        });
+    }
+
+    // a value read from fewer than friendDegree friends would serve QUORUM reads otherwise
+    private static boolean isCacheable(@NotNull final ConsistencyLevel level) {
+        return level == ConsistencyLevel.QUORUM || level == ConsistencyLevel.ALL;
+    }
+
+    // local value if quorum isn't reached, ALL means no value then
+    private static ValueTimeStampTuple fallback(@NotNull final String ns, @NotNull final String key, @Nullable final ValueTimeStampTuple seed,
+                                   @NotNull final Throwable t, @NotNull final ConsistencyLevel level) {
+        final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (!(cause instanceof QuorumException)) {
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+        }
+        log.warn("No quorum reached: " + key);
+        if (level == ConsistencyLevel.ALL) {
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+        if (seed != null) {
+            return seed;
+        }
+        throw new WebApplicationException(Response.Status.NOT_FOUND);
+    }
+
+    /**
+     * Asks friends for timestamps only and fetches the value from the freshest one, unless local value is the freshest.
+     * Friends are expected to be ordered by preference.
+     */
+    @NotNull
+    private static CompletableFuture<ValueTimeStampTuple> getByDigestAsync(@NotNull final String ns, @NotNull final String key, @Nullable final ValueTimeStampTuple seed,
+                                                              @NotNull final List<String> friends, final int quorum,
+                                                              @NotNull final ConsistencyLevel level) {
+        final App app = App.getInstance();
+        final RemoteConnector conn = RemoteConnector.getInstance();
+        final FriendsLatency latency = conn.getLatency();
+        final long timeout = latency.getTimeout(friends);
+        final long deadline = System.currentTimeMillis() + 2 * timeout; // digests and value
+        final long localTimeStamp = seed == null ? 0 : seed.getTimeStamp();
+        final ConcurrentMap<String, Long> timeStamps = new ConcurrentHashMap<>();
+        final AsyncQuorum.Context<Long, KeyTimeStampTuple> ctx =
+                AsyncQuorum.createContext(quorum, friends.size(),
+                        new AsyncQuorum.ResultFilter<Long, KeyTimeStampTuple>() {
+                            @Nullable
+                            @Override
+                            public Long fold(@Nullable Long prev, @Nullable KeyTimeStampTuple current) {
+                                final long timeStamp = current == null ? 0 : current.getTimeStamp();
+                                return prev == null || prev < timeStamp ? timeStamp : prev;
+                            }
+                        }, RemoteConnector.KEY_TS_TYPE
+                );
+        final AsyncQuorum.Sender<KeyTimeStampTuple> sender = new AsyncQuorum.Sender<KeyTimeStampTuple>() {
+            @Override
+            public Future<KeyTimeStampTuple> send(@NotNull final String friend) {
+                final ITypeListener<KeyTimeStampTuple> quorumListener = ctx.getListener(new AsyncQuorum.ErrorHandler<KeyTimeStampTuple>() {
+                    @Override
+                    public void handleFailed(Future<KeyTimeStampTuple> failed, ExecutionException t) {
+                        if (t == null) {
+                            log.info("Get digest cancelled for [" + friend + "]");
+                        } else {
+                            log.warn("Failed request to [" + friend + "]: " + t.getClass().getName() + ":" + t.getMessage());
+                            app.getFailureDetector().reportFailure(friend, t);
+                        }
+                    }
+                });
+                log.info("Replicate get digest to: " + friend);
+                return conn.getAsyncDigest(friend, ns, key, new TypeListener<KeyTimeStampTuple>(RemoteConnector.KEY_TS_TYPE) {
                     @Override
-                    public void run() {
-                        log.info("Async remember key: " + key);
-                        putLocally(ns, key, value, timeStamp);
+                    public void onComplete(Future<KeyTimeStampTuple> f) throws InterruptedException {
+                        try {
+                            timeStamps.put(friend, f.get().getTimeStamp());
+                        } catch (ExecutionException | CancellationException ignore) {
+                            // reported by quorum listener
+                        }
+                        quorumListener.onComplete(f);
                     }
                 });
             }
+        };
+        return AsyncQuorum.hedged(ctx, friends, latency.isHedgingEnabled() ? quorum : friends.size(),
+                latency.getHedgeDelay(friends.subList(0, quorum)), timeout, sender).thenCompose(newest -> {
+            final CompletableFuture<ValueTimeStampTuple> result = new CompletableFuture<>();
+            if (newest <= localTimeStamp) {
+                result.complete(seed);
+                return result;
+            }
+            // the freshest replicas first, preferred ones first among equally fresh
+            final List<Map.Entry<String, Long>> candidates = new ArrayList<>(timeStamps.entrySet());
+            Collections.sort(candidates, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                    final int result = Long.compare(o2.getValue(), o1.getValue());
+                    return result != 0 ? result : Integer.compare(friends.indexOf(o1.getKey()), friends.indexOf(o2.getKey()));
+                }
+            });
+            fetchValue(result, ns, key, seed, candidates, 0);
+            return AsyncQuorum.within(result, deadline - System.currentTimeMillis());
+        }).handle((result, t) -> {
+            if (t != null) {
+                return fallback(ns, key, seed, t, level);
+            }
+            if (result == null) {
+                log.info("No data by key at all: " + key);
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+            if (isCacheable(level)) {
+                app.getReadCache().put(ns, key, result);
+            }
+            if (result != seed) {
+                log.info("Async remember key: " + key);
+                app.writeBack(ns, Collections.singletonList(new KeyValueTuple(key, result.getValue(), result.getTimeStamp())));
+            }
+            return result;
+        });
+    }
 
+    // tries candidates one by one until one of them answers, the local value is the result if none does
+    private static void fetchValue(@NotNull final CompletableFuture<ValueTimeStampTuple> result, @NotNull final String ns,
+                                   @NotNull final String key, @Nullable final ValueTimeStampTuple seed,
+                                   @NotNull final List<Map.Entry<String, Long>> candidates, final int index) {
+        final long localTimeStamp = seed == null ? 0 : seed.getTimeStamp();
+        if (result.isDone()) {
+            return; // timed out
+        }
+        if (index == candidates.size() || candidates.get(index).getValue() <= localTimeStamp) {
+            result.complete(seed);
+            return;
         }
+        final String friend = candidates.get(index).getKey();
+        log.info("Get value of " + key + " from: " + friend);
+        final Future<ValueTimeStampTuple> request = RemoteConnector.getInstance().getAsyncRepl(friend, ns, key, candidates.get(index).getValue(),
+                new TypeListener<ValueTimeStampTuple>(RemoteConnector.REPL_TYPE) {
+                    @Override
+                    public void onComplete(Future<ValueTimeStampTuple> f) throws InterruptedException {
+                        try {
+                            result.complete(f.get());
+                        } catch (ExecutionException e) {
+                            log.warn("Failed to get value of " + key + " from [" + friend + "]: " + e.getMessage());
+                            fetchValue(result, ns, key, seed, candidates, index + 1);
+                        } catch (CancellationException ignore) {
+                            // timed out
+                        }
+                    }
+                });
+        result.whenComplete((r, t) -> request.cancel(true));
+    }
+
+    @GET
+    @Path("/_sys/protocols")
+    public String[] doGetProtocols() {
+        return new String[]{"json", BinaryCodec.PROTOCOL, ReplicationBatcher.PROTOCOL, BATCH_READ_PROTOCOL, DIGEST_PROTOCOL, DATA_PROTOCOL, REPLICA_WRITE_PROTOCOL, GossipMembership.PROTOCOL, MerkleTree.PROTOCOL};
+    }
+
+    @GET
+    @Path("/_sys/digest/{ns}/{key}")
+    public KeyTimeStampTuple doGetDigest(@PathParam("ns") final String ns, @PathParam("key") final String key) {
+        log.info("GET digest for replication: " + key);
+        final ArrayByteIterable keyBytes = StringBinding.stringToEntry(key);
+        final Long timeStamp = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<Long>() {
+            @Override
+            public Long compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                final ByteIterable valueBytes = namespace.get(txn, keyBytes);
+                return valueBytes == null ? null : ValueRecord.readTimeStamp(valueBytes);
+            }
+        });
+        // missing key is a valid answer too
+        return new KeyTimeStampTuple(key, timeStamp == null ? 0 : timeStamp);
     }
 
     @GET
     @Path("/{ns}/{key}/{timeStamp}")
+    @Produces({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
     public ValueTimeStampTuple doGetRepl(@PathParam("ns") final String ns, @PathParam("key") final String key,
                                          @PathParam("timeStamp") final Long timeStamp) {
         log.info("GET for replication: " + key);
         final ArrayByteIterable keyBytes = StringBinding.stringToEntry(key);
-        final ByteIterable valueBytes = App.getInstance().computeInTransaction(ns, new NamespaceTransactionalComputable<ByteIterable>() {
+        final ByteIterable valueBytes = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<ByteIterable>() {
             @Override
             public ByteIterable compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
                 return namespace.get(txn, keyBytes);
@@ -191,13 +437,403 @@ public class Database {
             log.info("No timestamp for key " + key + ", requested " + timeStamp);
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        final ByteIterator itr = valueBytes.iterator();
-        final long localTimeStamp = IterableUtils.readLong(itr);
-        if (localTimeStamp < timeStamp) {
-            log.info("Requested timestamp for key " + key + ": " + timeStamp + ", found: " + localTimeStamp);
+        final ValueRecord record = ValueRecord.read(valueBytes);
+        if (record.getTimeStamp() < timeStamp) {
+            log.info("Requested timestamp for key " + key + ": " + timeStamp + ", found: " + record.getTimeStamp());
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        return new ValueTimeStampTuple(localTimeStamp, IterableUtils.readString(itr));
+        return record;
+    }
+
+    @POST
+    @Path("/_sys/repl/read/{ns}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public List<KeyValueTuple> doGetBatchRepl(@PathParam("ns") final String ns, @NotNull final List<KeyTimeStampTuple> keys) {
+        log.info("GET batch of " + keys.size() + " for replication");
+        final List<String> keyList = new ArrayList<>(keys.size());
+        for (final KeyTimeStampTuple key : keys) {
+            keyList.add(key.getKey());
+        }
+        final Map<String, KeyValueTuple> local = getLocally(ns, keyList);
+        final List<KeyValueTuple> result = new ArrayList<>();
+        for (final KeyTimeStampTuple key : keys) {
+            final KeyValueTuple tuple = local.get(key.getKey());
+            if (tuple != null && tuple.getTimeStamp() >= key.getTimeStamp()) {
+                result.add(tuple);
+            }
+        }
+        return result;
+    }
+
+    @GET
+    @Path("/_sys/batch/{ns}")
+    public List<KeyValueResult> doGetBatch(@PathParam("ns") final String ns, @QueryParam("key") final List<String> keys,
+                                           @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                                           @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader) {
+        log.info("GET batch of " + keys.size());
+        final App app = App.getInstance();
+        final ConsistencyLevel level = ConsistencyLevel.parseRead(consistency, consistencyHeader, app.readConsistency);
+        final RemoteConnector conn = RemoteConnector.getInstance();
+        final FriendsLatency latency = conn.getLatency();
+        final String[] friends = level == ConsistencyLevel.LOCAL ? new String[0] : latency.order(app.getFriends());
+        final List<String> batchFriends = new ArrayList<>(friends.length);
+        for (final String friend : friends) {
+            if (conn.supports(friend, BATCH_READ_PROTOCOL)) {
+                batchFriends.add(friend);
+            }
+        }
+        if (friends.length > 0 && (batchFriends.isEmpty() || app.isPartitioned())) {
+            log.info("No friends reading in batches or keys stored by different friends, get keys one by one");
+            final List<KeyValueResult> result = new ArrayList<>(keys.size());
+            for (final String key : keys) {
+                try {
+                    final ValueTimeStampTuple tuple = await(getAsync(ns, key, level));
+                    result.add(new KeyValueResult(key, tuple.getValue(), tuple.getTimeStamp(), Response.Status.OK.getStatusCode()));
+                } catch (WebApplicationException e) {
+                    result.add(new KeyValueResult(key, null, 0, e.getResponse().getStatus()));
+                }
+            }
+            return result;
+        }
+        final Map<String, KeyValueTuple> seeds = getLocally(ns, keys);
+        Map<String, KeyValueTuple> newest = seeds;
+        boolean unavailable = false;
+        if (!batchFriends.isEmpty()) {
+            final List<KeyTimeStampTuple> request = new ArrayList<>(keys.size());
+            for (final String key : keys) {
+                final KeyValueTuple seed = seeds.get(key);
+                request.add(new KeyTimeStampTuple(key, seed == null ? 0 : seed.getTimeStamp()));
+            }
+            final int maxFriends = level.getFriends(app.replicationReadDegree, batchFriends.size());
+            final AsyncQuorum.Context<Map<String, KeyValueTuple>, KeyValueTuple[]> ctx =
+                    AsyncQuorum.createContext(level.getQuorum(app.friendDegree, maxFriends), maxFriends,
+                            new AsyncQuorum.ResultFilter<Map<String, KeyValueTuple>, KeyValueTuple[]>() {
+                                @Nullable
+                                @Override
+                                public Map<String, KeyValueTuple> fold(@Nullable Map<String, KeyValueTuple> prev, @Nullable KeyValueTuple[] current) {
+                                    if (current == null) {
+                                        return prev;
+                                    }
+                                    final Map<String, KeyValueTuple> result = new HashMap<>(prev == null ? seeds : prev);
+                                    for (final KeyValueTuple tuple : current) {
+                                        final KeyValueTuple old = result.get(tuple.getKey());
+                                        if (old == null || old.getTimeStamp() < tuple.getTimeStamp()) {
+                                            result.put(tuple.getKey(), tuple);
+                                        }
+                                    }
+                                    return result;
+                                }
+                            }, RemoteConnector.KV_ARR_TYPE
+                    );
+            final Future<?>[] futures = new Future<?>[maxFriends];
+            for (int i = 0; i < maxFriends; i++) {
+                final String friend = batchFriends.get(i);
+                log.info("Replicate batch get to: " + friend);
+                futures[i] = conn.getBatchAsyncRepl(friend, ns, request, ctx.getListener(new AsyncQuorum.ErrorHandler<KeyValueTuple[]>() {
+                    @Override
+                    public void handleFailed(Future<KeyValueTuple[]> failed, ExecutionException t) {
+                        if (t == null) { // null means "cancelled"
+                            log.info("Get batch REPL cancelled for [" + friend + "]");
+                        } else {
+                            log.warn("Failed request to [" + friend + "]: " + t.getClass().getName() + ":" + t.getMessage());
+                            app.getFailureDetector().reportFailure(friend, t);
+                        }
+                    }
+                }));
+            }
+            ctx.setFutures(futures);
+            try {
+                final Map<String, KeyValueTuple> result = ctx.get(latency.getTimeout(batchFriends.subList(0, maxFriends)), TimeUnit.MILLISECONDS);
+                log.info("Get batch replicated successfully");
+                if (result != null) {
+                    newest = result;
+                }
+            } catch (QuorumException q) {
+                log.warn("No quorum reached for batch of " + keys.size());
+                unavailable = level == ConsistencyLevel.ALL;
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new RuntimeException(e);
+            } finally {
+                ctx.cancel(true); // cancel other jobs
+            }
+            final List<KeyValueTuple> newer = new ArrayList<>();
+            for (final KeyValueTuple tuple : newest.values()) {
+                final KeyValueTuple seed = seeds.get(tuple.getKey());
+                if (seed == null || seed.getTimeStamp() < tuple.getTimeStamp()) {
+                    newer.add(tuple);
+                }
+            }
+            if (!newer.isEmpty()) {
+                log.info("Async remember " + newer.size() + " keys");
+                app.writeBack(ns, newer);
+            }
+        }
+        final List<KeyValueResult> result = new ArrayList<>(keys.size());
+        for (final String key : keys) {
+            final KeyValueTuple tuple = newest.get(key);
+            if (unavailable) {
+                result.add(new KeyValueResult(key, null, 0, Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+            } else if (tuple == null) {
+                result.add(new KeyValueResult(key, null, 0, Response.Status.NOT_FOUND.getStatusCode()));
+            } else {
+                result.add(new KeyValueResult(key, tuple.getValue(), tuple.getTimeStamp(), Response.Status.OK.getStatusCode()));
+            }
+        }
+        return result;
+    }
+
+    @POST
+    @Path("/_sys/batch/{ns}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public List<KeyValueResult> doPostBatch(@PathParam("ns") final String ns, @NotNull final List<KeyValueTuple> writes,
+                                            @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                                            @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader) {
+        log.info("POST batch of " + writes.size() + " to " + App.getInstance().getBaseURI().toString());
+        checkWritable(ns);
+        final App app = App.getInstance();
+        final ConsistencyLevel level = ConsistencyLevel.parseWrite(consistency, consistencyHeader, app.writeConsistency);
+        // with ONE own writes are acknowledged once they are committed together with their queue entries
+        final boolean queued = level == ConsistencyLevel.ONE;
+        final List<KeyValueTuple> own = new ArrayList<>(writes.size());
+        final Set<String> foreign = new HashSet<>();
+        for (final KeyValueTuple write : writes) {
+            if (app.isReplica(ns, write.getKey())) {
+                own.add(write);
+            } else {
+                foreign.add(write.getKey());
+            }
+        }
+        final Long[] ownTimeStamps = putLocally(ns, own, queued);
+        final List<KeyValueResult> result = new ArrayList<>(writes.size());
+        final List<Pair<String, KeyValueTuple>> accepted = new ArrayList<>();
+        final List<Pair<String, KeyValueTuple>> ownQueued = new ArrayList<>();
+        for (int i = 0, j = 0; i < writes.size(); i++) {
+            final KeyValueTuple write = writes.get(i);
+            final Long timeStamp;
+            if (foreign.contains(write.getKey())) {
+                timeStamp = write.getTimeStamp() == 0 ? System.currentTimeMillis() : write.getTimeStamp();
+            } else {
+                timeStamp = ownTimeStamps[j++];
+            }
+            if (timeStamp == null) {
+                result.add(new KeyValueResult(write.getKey(), null, 0, Response.Status.NOT_ACCEPTABLE.getStatusCode()));
+            } else {
+                result.add(new KeyValueResult(write.getKey(), null, timeStamp, Response.Status.OK.getStatusCode()));
+                final Pair<String, KeyValueTuple> written = new Pair<>(ns, new KeyValueTuple(write.getKey(), write.getValue(), timeStamp));
+                if (queued && !foreign.contains(write.getKey())) {
+                    ownQueued.add(written);
+                } else {
+                    accepted.add(written);
+                }
+            }
+        }
+        app.getOutboundQueue().added(ownQueued.size());
+        app.getHintedHandoff().addForDownFriends(ownQueued);
+
+        // replicate to friends, batcher sends a single request per friend
+        final List<Pair<String, KeyValueTuple>> failed = replicateDoPost(accepted, level);
+
+        // the level isn't reached, own writes are still replicated later
+        if (!failed.isEmpty()) {
+            final List<Pair<String, KeyValueTuple>> ownFailed = new ArrayList<>();
+            final Set<String> unavailable = new HashSet<>();
+            for (final Pair<String, KeyValueTuple> write : failed) {
+                final String key = write.getSecond().getKey();
+                if (!foreign.contains(key)) {
+                    ownFailed.add(write);
+                }
+                unavailable.add(key);
+            }
+            app.getOutboundQueue().add(ownFailed);
+            for (int i = 0; i < result.size(); i++) {
+                final String key = result.get(i).getKey();
+                if (unavailable.contains(key)) {
+                    result.set(i, new KeyValueResult(key, null, 0, Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Scans keys in store order starting with prefix, not less than from and less than to, all optional.
+     * Pages are limited by limit keys and continued by passing the "next" key of the previous page as after.
+     * Quorum mode merges pages of friends by key newest timestamp wins, local mode reads the local store only.
+     */
+    @GET
+    @Path("/_sys/scan/{ns}")
+    public ScanResult doScan(@PathParam("ns") final String ns, @QueryParam("prefix") final String prefix,
+                             @QueryParam("from") final String from, @QueryParam("to") final String to,
+                             @QueryParam("after") final String after, @QueryParam("limit") @DefaultValue("100") final int limit,
+                             @QueryParam("mode") @DefaultValue("quorum") final String mode) {
+        final App app = App.getInstance();
+        if (limit <= 0 || !("local".equals(mode) || "quorum".equals(mode))) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        final int pageSize = Math.min(limit, app.scanMaxLimit);
+        log.info("SCAN " + ns + ", mode " + mode);
+        final ScanResult local = scanLocally(ns, prefix, from, to, after, pageSize);
+        final String[] friends = app.getFriends();
+        if ("local".equals(mode) || friends.length == 0) {
+            return local;
+        }
+        final FriendsLatency latency = RemoteConnector.getInstance().getLatency();
+        latency.order(friends);
+        final int maxFriends;
+        final int quorum;
+        if (app.isPartitioned()) {
+            // every key has replicationFactor replicas, so answers of all friends but replicationFactor - 1 cover all keys
+            maxFriends = friends.length;
+            quorum = Math.max(1, friends.length - app.replicationFactor + 1);
+        } else {
+            maxFriends = Math.min(app.replicationReadDegree, friends.length);
+            quorum = Math.min(app.friendDegree, maxFriends);
+        }
+        final AsyncQuorum.Context<List<ScanResult>, ScanResult> ctx =
+                AsyncQuorum.createContext(quorum, maxFriends,
+                        new AsyncQuorum.ResultFilter<List<ScanResult>, ScanResult>() {
+                            @Nullable
+                            @Override
+                            public List<ScanResult> fold(@Nullable List<ScanResult> prev, @Nullable ScanResult current) {
+                                final List<ScanResult> result = prev == null ? new ArrayList<ScanResult>() : new ArrayList<>(prev);
+                                if (current != null) {
+                                    result.add(current);
+                                }
+                                return result;
+                            }
+                        }, RemoteConnector.SCAN_TYPE
+                );
+        final Future<?>[] futures = new Future<?>[maxFriends];
+        for (int i = 0; i < maxFriends; i++) {
+            final String friend = friends[i];
+            futures[i] = RemoteConnector.getInstance().scanLocalAsync(friend, ns, prefix, from, to, after, pageSize, ctx.getListener(new AsyncQuorum.ErrorHandler<ScanResult>() {
+                @Override
+                public void handleFailed(Future<ScanResult> failed, ExecutionException t) {
+                    if (t == null) { // null means "cancelled"
+                        log.info("Scan REPL cancelled for [" + friend + "]");
+                    } else {
+                        log.warn("Failed request to [" + friend + "]: " + t.getClass().getName() + ":" + t.getMessage());
+                        app.getFailureDetector().reportFailure(friend, t);
+                    }
+                }
+            }));
+        }
+        ctx.setFutures(futures);
+        final List<ScanResult> pages = new ArrayList<>();
+        pages.add(local);
+        try {
+            pages.addAll(ctx.get(latency.getTimeout(Arrays.asList(friends).subList(0, maxFriends)), TimeUnit.MILLISECONDS));
+        } catch (QuorumException q) {
+            log.warn("No quorum reached for scan of " + ns);
+            return local;
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ctx.cancel(true); // cancel other jobs
+        }
+        final ScanResult result = merge(pages, pageSize);
+        final Map<String, Long> localTimeStamps = new HashMap<>();
+        for (final KeyValueTuple tuple : local.getData()) {
+            localTimeStamps.put(tuple.getKey(), tuple.getTimeStamp());
+        }
+        final List<KeyValueTuple> newer = new ArrayList<>();
+        for (final KeyValueTuple tuple : result.getData()) {
+            final Long localTimeStamp = localTimeStamps.get(tuple.getKey());
+            if (localTimeStamp == null || localTimeStamp < tuple.getTimeStamp()) {
+                newer.add(tuple);
+            }
+        }
+        if (!newer.isEmpty()) {
+            log.info("Async remember " + newer.size() + " scanned keys");
+            app.writeBack(ns, newer);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ScanResult scanLocally(@NotNull final String ns, @Nullable final String prefix, @Nullable final String from,
+                                          @Nullable final String to, @Nullable final String after, final int limit) {
+        final ScanResult local = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<ScanResult>() {
+            @Override
+            public ScanResult compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                final List<KeyValueTuple> result = new ArrayList<>();
+                final ArrayByteIterable toEntry = to == null ? null : StringBinding.stringToEntry(to);
+                final Cursor cursor = namespace.openCursor(txn);
+                try {
+                    String start = prefix;
+                    if (from != null && (start == null || KEY_ORDER.compare(from, start) > 0)) {
+                        start = from;
+                    }
+                    ByteIterable valueEntry;
+                    if (after != null && (start == null || KEY_ORDER.compare(after, start) >= 0)) {
+                        final ArrayByteIterable afterEntry = StringBinding.stringToEntry(after);
+                        valueEntry = cursor.getSearchKeyRange(afterEntry);
+                        if (valueEntry != null && cursor.getKey().compareTo(afterEntry) == 0) {
+                            valueEntry = cursor.getNext() ? cursor.getValue() : null;
+                        }
+                    } else if (start != null) {
+                        valueEntry = cursor.getSearchKeyRange(StringBinding.stringToEntry(start));
+                    } else {
+                        valueEntry = cursor.getNext() ? cursor.getValue() : null;
+                    }
+                    while (valueEntry != null) {
+                        final ByteIterable keyEntry = cursor.getKey();
+                        if (toEntry != null && keyEntry.compareTo(toEntry) >= 0) {
+                            break;
+                        }
+                        final String key = StringBinding.entryToString(keyEntry);
+                        if (prefix != null && !key.startsWith(prefix)) {
+                            break;
+                        }
+                        if (result.size() == limit) {
+                            return new ScanResult(result, result.get(limit - 1).getKey());
+                        }
+                        final ValueRecord record = ValueRecord.read(valueEntry);
+                        result.add(new KeyValueTuple(key, record.getValue(), record.getTimeStamp()));
+                        valueEntry = cursor.getNext() ? cursor.getValue() : null;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return new ScanResult(result, null);
+            }
+        });
+        return local == null ? new ScanResult(Collections.<KeyValueTuple>emptyList(), null) : local;
+    }
+
+    /**
+     * Pages which have more data are only complete up to their last key, so merged page ends at the least of them.
+     */
+    @NotNull
+    private static ScanResult merge(@NotNull final List<ScanResult> pages, final int limit) {
+        String bound = null;
+        for (final ScanResult page : pages) {
+            final String next = page.getNext();
+            if (next != null && (bound == null || KEY_ORDER.compare(next, bound) < 0)) {
+                bound = next;
+            }
+        }
+        final Map<String, KeyValueTuple> merged = new TreeMap<>(KEY_ORDER);
+        for (final ScanResult page : pages) {
+            for (final KeyValueTuple tuple : page.getData()) {
+                if (bound != null && KEY_ORDER.compare(tuple.getKey(), bound) > 0) {
+                    continue;
+                }
+                final KeyValueTuple old = merged.get(tuple.getKey());
+                if (old == null || old.getTimeStamp() < tuple.getTimeStamp()) {
+                    merged.put(tuple.getKey(), tuple);
+                }
+            }
+        }
+        final List<KeyValueTuple> result = new ArrayList<>(Math.min(limit, merged.size()));
+        for (final KeyValueTuple tuple : merged.values()) {
+            if (result.size() == limit) {
+                return new ScanResult(result, result.get(limit - 1).getKey());
+            }
+            result.add(tuple);
+        }
+        return new ScanResult(result, bound);
     }
 
     @POST
@@ -206,20 +842,168 @@ public class Database {
     @Produces(MediaType.TEXT_PLAIN)
     public Response doPost(@PathParam("ns") final String ns, @PathParam("key") final String key,
                            @FormParam("value") final String value, @QueryParam("timeStamp") final Long timeStamp,
+                           @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                           @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader,
                            @Context UriInfo uriInfo) {
+        return await(postAsync(ns, key, value, timeStamp,
+                ConsistencyLevel.parseWrite(consistency, consistencyHeader, App.getInstance().writeConsistency), false));
+    }
+
+    /**
+     * Stores the value and replicates it to friends, doesn't wait for them. The response is ready once the level
+     * is reached: ONE is reached by the local write if this node is a replica of the key, replication is left to
+     * the outbound queue then. Otherwise the answer is 503 if the level isn't reached, a replica still keeps the
+     * write in the queue and replicates it later.
+     *
+     * @param replica true if the write is replicated by its coordinator.
+     */
+    @NotNull
+    public static CompletableFuture<Response> postAsync(@NotNull final String ns, @NotNull final String key,
+                                                        @Nullable final String value, @Nullable final Long timeStamp,
+                                                        @NotNull final ConsistencyLevel level, final boolean replica) {
         log.info("POST to " + App.getInstance().getBaseURI().toString());
+        checkWritable(ns);
+        final App app = App.getInstance();
+        final boolean isReplica = app.isReplica(ns, key);
+        // with partitioned data the coordinator replicates to all replicas itself
+        final boolean replicatedByCoordinator = replica && isReplica && app.isPartitioned();
+        final boolean queued = isReplica && !replicatedByCoordinator && level == ConsistencyLevel.ONE;
 
-        final Long nextTimeStamp = putLocally(ns, key, value, timeStamp);
+        final Long nextTimeStamp;
+        if (isReplica) {
+            nextTimeStamp = putLocally(ns, key, value, timeStamp, queued);
+        } else {
+            log.info("Not a replica of " + key + ", forward put");
+            nextTimeStamp = timeStamp == null ? System.currentTimeMillis() : timeStamp;
+        }
 
         if (nextTimeStamp == null) {
             log.info("Ignore put - timestamp is smaller.");
-            return Response.status(Response.Status.NOT_ACCEPTABLE).build();
+            return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_ACCEPTABLE).build());
+        }
+
+        if (replicatedByCoordinator) {
+            return CompletableFuture.completedFuture(Response.ok().build());
+        }
+        if (queued) {
+            app.getOutboundQueue().added(1);
+            if (!replica) {
+                app.getHintedHandoff().addForDownFriends(Collections.singletonList(new Pair<>(ns, new KeyValueTuple(key, value, nextTimeStamp))));
+            }
+            return CompletableFuture.completedFuture(Response.ok().build());
         }
 
         // replicate to friends
-        replicateDoPost(ns, key, value, nextTimeStamp);
+        return replicateAsync(Collections.singletonList(new Pair<>(ns, new KeyValueTuple(key, value, nextTimeStamp))), level, !replica).thenApply(failed -> {
+            if (failed.isEmpty()) {
+                return Response.ok().build();
+            }
+            if (isReplica) {
+                app.getOutboundQueue().add(failed);
+            }
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        });
+    }
+
+    /**
+     * Waits for a future of getAsync or postAsync, rethrows what it failed with.
+     */
+    private static <T> T await(@NotNull final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    @POST
+    @Path("/{ns}/{key}")
+    @Consumes(BinaryCodec.MEDIA_TYPE)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response doPost(@PathParam("ns") final String ns, @PathParam("key") final String key,
+                           @NotNull final ValueTimeStampTuple value,
+                           @QueryParam(ConsistencyLevel.PARAM) final String consistency,
+                           @HeaderParam(ConsistencyLevel.HEADER) final String consistencyHeader,
+                           @Context UriInfo uriInfo) {
+        return doPost(ns, key, value.getValue(), value.getTimeStamp(), consistency, consistencyHeader, uriInfo);
+    }
+
+    /**
+     * A write replicated by the coordinator of the key, not replicated any further by a replica of the key.
+     */
+    @POST
+    @Path("/_sys/repl/{ns}/{key}")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response doPostReplica(@PathParam("ns") final String ns, @PathParam("key") final String key,
+                                  @FormParam("value") final String value, @QueryParam("timeStamp") final Long timeStamp) {
+        return await(postAsync(ns, key, value, timeStamp, App.getInstance().writeConsistency, true));
+    }
+
+    @POST
+    @Path("/_sys/repl/{ns}/{key}")
+    @Consumes(BinaryCodec.MEDIA_TYPE)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response doPostReplica(@PathParam("ns") final String ns, @PathParam("key") final String key,
+                                  @NotNull final ValueTimeStampTuple value) {
+        return doPostReplica(ns, key, value.getValue(), value.getTimeStamp());
+    }
+
+    @POST
+    @Path("/_sys/repl/batch")
+    @Consumes({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+    @Produces({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+    public WriteBatchResult doPostReplBatch(@NotNull final WriteBatch batch) {
+        int total = 0;
+        for (final NameSpaceKVIterableTuple nsTuple : batch.getData()) {
+            total += nsTuple.getData().size();
+        }
+        log.info("POST batch of " + total + " to " + App.getInstance().getBaseURI().toString());
+        final int[] statuses = new int[total];
+        final List<Pair<String, KeyValueTuple>> accepted = new ArrayList<>();
+        int i = 0;
+        for (final NameSpaceKVIterableTuple nsTuple : batch.getData()) {
+            final String ns = nsTuple.getNamespace();
+            final List<KeyValueTuple> nsWrites = nsTuple.getData();
+            final Long[] timeStamps = putLocally(ns, nsWrites);
+            for (int j = 0; j < timeStamps.length; j++) {
+                if (timeStamps[j] == null) {
+                    statuses[i++] = Response.Status.NOT_ACCEPTABLE.getStatusCode();
+                } else {
+                    statuses[i++] = Response.Status.OK.getStatusCode();
+                    accepted.add(new Pair<>(ns, nsWrites.get(j)));
+                }
+            }
+        }
 
-        return Response.ok().build();
+        // replicate accepted writes further like doPost does, unless the coordinator replicates to all replicas itself,
+        // statuses are about local writes only, so there's nothing to wait for
+        if (!App.getInstance().isPartitioned()) {
+            replicateAsync(accepted, ConsistencyLevel.QUORUM, false);
+        }
+
+        return new WriteBatchResult(statuses);
+    }
+
+    @POST
+    @Path("/_sys/gossip")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public GossipMessage doPostGossip(@NotNull final GossipMessage message) {
+        final GossipMembership gossip = App.getInstance().getGossip();
+        if (gossip == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return gossip.handle(message);
+    }
+
+    @GET
+    @Path("/_sys/stats")
+    public Map<String, Long> doGetStats() {
+        return App.getInstance().getStatistics();
     }
 
     @GET
@@ -236,100 +1020,311 @@ public class Database {
     @GET
     @Path("/data/{timeStamp}")
     public List<NameSpaceKVIterableTuple> doGetData(@PathParam("timeStamp") final long timeStamp) {
+        // all the data at once, for nodes not supporting DATA_PROTOCOL yet
+        final List<NameSpaceKVIterableTuple> result = new ArrayList<>();
+        DataChunk chunk = doGetData(new DataRequest(timeStamp, Collections.<String, Long>emptyMap(), null));
+        while (true) {
+            result.addAll(chunk.getData());
+            final ContinuationToken next = chunk.getNext();
+            if (next == null) {
+                return result;
+            }
+            chunk = doGetData(new DataRequest(timeStamp, Collections.<String, Long>emptyMap(), next));
+        }
+    }
+
+    @POST
+    @Path("/_sys/data")
+    @Consumes({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+    @Produces({MediaType.APPLICATION_JSON, BinaryCodec.MEDIA_TYPE})
+    public DataChunk doGetData(@NotNull final DataRequest request) {
         final App app = App.getInstance();
-        return app.getEnvironment().computeInTransaction(new TransactionalComputable<List<NameSpaceKVIterableTuple>>() {
+        final ContinuationToken from = request.getFrom();
+        // keys the requester isn't a replica of aren't sent at all
+        final String requester = request.getRequester();
+        final List<long[]> ranges = requester == null ? null : app.getReplicaRanges(requester);
+        return app.computeInReadonlyTransaction(new TransactionalComputable<DataChunk>() {
             @Override
-            public List<NameSpaceKVIterableTuple> compute(@NotNull final Transaction txn) {
+            public DataChunk compute(@NotNull final Transaction txn) {
                 final List<NameSpaceKVIterableTuple> result = new ArrayList<>();
-                for (final String ns : app.getNamespaces(timeStamp, txn)) {
+                final String[] namespaces = app.getNamespaces(txn);
+                Arrays.sort(namespaces); // continuation relies on stable namespace order
+                int entries = 0;
+                long bytes = 0;
+                for (final String ns : namespaces) {
+                    if (from != null && ns.compareTo(from.getNamespace()) < 0) {
+                        continue;
+                    }
+                    final long timeStamp = request.getTimeStamp(ns);
+                    final long nsTimeStamp = app.getNamespaceTimeStamp(ns, txn);
+                    if (nsTimeStamp == 0 || nsTimeStamp < timeStamp) {
+                        continue;
+                    }
                     final Pair<Store, Store> stores = app.getNsStores(ns);
                     final Store namespace = stores.getFirst();
                     final Store idx = stores.getSecond();
                     final List<KeyValueTuple> nsList = new ArrayList<>();
                     final Cursor cursor = idx.openCursor(txn);
                     try {
-                        ByteIterable valueEntry = cursor.getSearchKeyRange(LongBinding.longToCompressedEntry(timeStamp));
+                        ByteIterable valueEntry = from != null && ns.equals(from.getNamespace()) ?
+                                seekAfter(cursor, from.getTimeStamp(), from.getKey()) :
+                                cursor.getSearchKeyRange(LongBinding.longToCompressedEntry(timeStamp));
                         while (valueEntry != null) {
                             final String key = StringBinding.entryToString(valueEntry);
+                            if (ranges != null && !ConsistentHashRing.contains(ranges, ConsistentHashRing.getToken(ns, key))) {
+                                valueEntry = cursor.getNext() ? cursor.getValue() : null;
+                                continue;
+                            }
                             final long keyTimeStamp = LongBinding.compressedEntryToLong(cursor.getKey());
-                            final ByteIterator itr = namespace.get(txn, valueEntry).iterator();
-                            itr.skip(8); // ignore timestamp
-                            final String value = IterableUtils.readString(itr);
-                            valueEntry = cursor.getNext() ? cursor.getValue() : null;
+                            final String value = ValueRecord.read(namespace.get(txn, valueEntry)).getValue();
                             nsList.add(new KeyValueTuple(key, value, keyTimeStamp));
+                            entries++;
+                            // UTF-8 size, the same as the in-flight limit of the pulling node counts
+                            bytes += Utils.getUtf8Length(key) + Utils.getUtf8Length(value);
+                            if (entries >= app.dataChunkSize || bytes >= app.dataChunkBytes) {
+                                result.add(new NameSpaceKVIterableTuple(ns, nsList));
+                                return new DataChunk(result, new ContinuationToken(ns, keyTimeStamp, key));
+                            }
+                            valueEntry = cursor.getNext() ? cursor.getValue() : null;
                         }
                     } finally {
                         cursor.close();
                     }
-                    result.add(new NameSpaceKVIterableTuple(ns, nsList));
+                    if (!nsList.isEmpty()) {
+                        result.add(new NameSpaceKVIterableTuple(ns, nsList));
+                    }
                 }
-                return result;
+                return new DataChunk(result, null);
             }
         });
     }
 
+    @GET
+    @Path("/_sys/merkle/{ns}/{level}")
+    public long[] doGetMerkleHashes(@PathParam("ns") final String ns, @PathParam("level") final int level,
+                                    @QueryParam("node") final List<Integer> nodes) {
+        if (level < 0 || level > MerkleTree.DEPTH) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        final MerkleTree tree = App.getInstance().getMerkleTree();
+        if (!tree.ensureBuilt(ns)) {
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+        return tree.getHashes(ns, level, toIndices(nodes, MerkleTree.getNodeCount(level)));
+    }
+
+    @GET
+    @Path("/_sys/merkle/{ns}/leaves")
+    public List<KeyTimeStampTuple> doGetMerkleLeaves(@PathParam("ns") final String ns, @QueryParam("leaf") final List<Integer> leaves) {
+        return App.getInstance().getMerkleTree().getLeafEntries(ns, toIndices(leaves, MerkleTree.LEAVES));
+    }
+
+    private static int[] toIndices(@NotNull final List<Integer> values, final int count) {
+        final int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            final int value = values.get(i);
+            if (value < 0 || value >= count) {
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            }
+            result[i] = value;
+        }
+        return result;
+    }
+
+    @Nullable
+    private static ByteIterable seekAfter(@NotNull final Cursor cursor, final long timeStamp, @NotNull final String key) {
+        final ArrayByteIterable timeStampEntry = LongBinding.longToCompressedEntry(timeStamp);
+        final ArrayByteIterable keyEntry = StringBinding.stringToEntry(key);
+        final ByteIterable valueEntry = cursor.getSearchBothRange(timeStampEntry, keyEntry);
+        if (valueEntry == null) {
+            return cursor.getSearchKeyRange(LongBinding.longToCompressedEntry(timeStamp + 1));
+        }
+        if (valueEntry.compareTo(keyEntry) == 0 && cursor.getKey().compareTo(timeStampEntry) == 0) {
+            return cursor.getNext() ? cursor.getValue() : null;
+        }
+        return valueEntry; // token entry is gone, cursor points to the following one
+    }
+
+
+    /**
+     * @return writes which didn't reach quorum of friends storing them after all retries.
+     */
+    @NotNull
+    private static List<Pair<String, KeyValueTuple>> replicateDoPost(@NotNull final List<Pair<String, KeyValueTuple>> writes,
+                                                                     @NotNull final ConsistencyLevel level) {
+        return await(replicateAsync(writes, level, true));
+    }
+
+    /**
+     * Waits for the level of every write separately, writes which didn't reach it are retried with other friends.
+     *
+     * @param coordinator true to hint the writes for friends which are down or fail, done once by the node coordinating them.
+     * @return writes which didn't reach the level after all retries.
+     */
+    @NotNull
+    static CompletableFuture<List<Pair<String, KeyValueTuple>>> replicateAsync(@NotNull final List<Pair<String, KeyValueTuple>> writes,
+                                                                               @NotNull final ConsistencyLevel level,
+                                                                               final boolean coordinator) {
+        if (coordinator) {
+            App.getInstance().getHintedHandoff().addForDownFriends(writes);
+        }
+        return replicateAsync(writes, level, coordinator, 0);
+    }
 
-    private void replicateDoPost(String ns, String key, String value, Long timeStamp) {
+    @NotNull
+    private static CompletableFuture<List<Pair<String, KeyValueTuple>>> replicateAsync(@NotNull final List<Pair<String, KeyValueTuple>> writes,
+                                                                                       @NotNull final ConsistencyLevel level,
+                                                                                       final boolean coordinator, final int retry) {
         final App app = App.getInstance();
-        for (int retry = 0; retry < app.replicationWriteRetryDegree; retry++) {
-            final String[] friends = app.getFriends();
-            app.shuffle(friends);
+        if (retry >= app.replicationWriteRetryDegree || writes.isEmpty()) {
+            return CompletableFuture.completedFuture(writes);
+        }
+        final FriendsLatency latency = RemoteConnector.getInstance().getLatency();
+        final String[] allFriends = app.isPartitioned() ? null : latency.order(app.getFriends());
+        final List<CompletableFuture<Integer>> quorums = new ArrayList<>(writes.size());
+        final List<Pair<String, KeyValueTuple>> replicated = new ArrayList<>(writes.size());
+        final Set<String> targets = new HashSet<>();
+        for (final Pair<String, KeyValueTuple> write : writes) {
+            final String[] friends = allFriends != null ? allFriends :
+                    latency.order(app.getReplicaFriends(write.getFirst(), write.getSecond().getKey()));
             if (friends.length == 0) {
-                return;
+                continue;
             }
-            final int maxFriends = Math.min(app.replicationWriteDegree, friends.length);
-            AsyncQuorum.Context<ClientResponse, ClientResponse> ctx =
-                    AsyncQuorum.createContext(Math.min(app.friendDegree, maxFriends), maxFriends,
-                            new AsyncQuorum.ResultFilter<ClientResponse, ClientResponse>() {
+            final int maxFriends = level.getFriends(app.replicationWriteDegree, friends.length);
+            final AsyncQuorum.Context<Integer, Integer> ctx =
+                    AsyncQuorum.createContext(level.getQuorum(app.friendDegree, maxFriends), maxFriends,
+                            new AsyncQuorum.ResultFilter<Integer, Integer>() {
                                 @Nullable
                                 @Override
-                                public ClientResponse fold(@Nullable ClientResponse prev, @Nullable ClientResponse current) {
+                                public Integer fold(@Nullable Integer prev, @Nullable Integer current) {
                                     return current;
                                 }
-                            }, RemoteConnector.RESP_TYPE
+                            }, RemoteConnector.STATUS_TYPE
                     );
-            int i = 0;
-            final Future[] futures = new Future[maxFriends];
-            for (final String friend : friends) {
-                log.info("Schedule replication to: " + friend);
-                futures[i++] = RemoteConnector.getInstance().putAsync(friend, ns, key, value, ctx.getListener(new AsyncQuorum.ErrorHandler<ClientResponse>() {
+            final Future<?>[] futures = new Future<?>[maxFriends];
+            for (int i = 0; i < maxFriends; i++) {
+                final String friend = friends[i];
+                targets.add(friend);
+                futures[i] = app.getReplicationBatcher().submit(friend, write.getFirst(), write.getSecond(), ctx.getListener(new AsyncQuorum.ErrorHandler<Integer>() {
                     @Override
-                    public void handleFailed(Future<ClientResponse> failed, ExecutionException t) {
+                    public void handleFailed(Future<Integer> failed, ExecutionException t) {
                         if (t == null) { // null means "cancelled"
                             log.info("Replication cancelled for [" + friend + "]");
+                            if (coordinator && app.getFailureDetector().isSuspected(friend)) {
+                                // most likely hangs, don't rely on background replication to catch up
+                                app.getHintedHandoff().add(friend, write.getFirst(), write.getSecond());
+                            }
                         } else {
                             log.warn("Exception for [" + friend + "] " + t.getClass().getName() + ":" + t.getMessage());
-                            app.removeFriends(friend);
+                            if (!RemoteConnector.isOverloaded(t)) {
+                                if (coordinator) {
+                                    app.getHintedHandoff().add(friend, write.getFirst(), write.getSecond());
+                                }
+                                app.getFailureDetector().reportFailure(friend);
+                            }
                         }
                     }
-                }), timeStamp);
-                if (i >= maxFriends) {
-                    break;
-                }
+                }));
             }
             ctx.setFutures(futures);
-            try {
-                ctx.get(1000, TimeUnit.MILLISECONDS);
-                log.warn("Replicated successfuly");
-            } catch (QuorumException q) {
-                log.warn("Replication quorum error, looks like a lot of friends went down: " + q.getMessage());
-            } catch (TimeoutException t) {
-                log.warn("Replication quorum timeout: " + t.getMessage());
-            } catch (Throwable t) {
-                log.error("Replication error", t);
-            } finally {
-                ctx.cancel(true); // cancel other jobs
-            }
+            quorums.add(ctx.toCompletableFuture());
+            replicated.add(write);
+        }
+        final long timeout = latency.getTimeout(targets);
+        for (final CompletableFuture<Integer> quorum : quorums) {
+            AsyncQuorum.within(quorum, timeout);
         }
+        return CompletableFuture.allOf(quorums.toArray(new CompletableFuture<?>[quorums.size()])).handle((r, t) -> {
+            final List<Pair<String, KeyValueTuple>> failed = new ArrayList<>();
+            for (int i = 0; i < quorums.size(); i++) {
+                try {
+                    quorums.get(i).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof QuorumException) {
+                        log.warn("Replication quorum error, looks like a lot of friends went down: " + e.getCause().getMessage());
+                    } else {
+                        log.error("Replication error", e.getCause());
+                    }
+                    failed.add(replicated.get(i));
+                } catch (CancellationException e) {
+                    log.error("Replication error", e);
+                    failed.add(replicated.get(i));
+                }
+            }
+            if (failed.isEmpty() && !replicated.isEmpty()) {
+                log.info("Replicated " + replicated.size() + " writes successfully");
+            }
+            return failed;
+        }).thenCompose(failed -> replicateAsync(failed, level, coordinator, retry + 1));
     }
 
     public static Long putLocally(String ns, final String key, final String value, final Long timeStamp) {
+        return putLocally(ns, key, value, timeStamp, false);
+    }
+
+    /**
+     * @param enqueue whether to add the write to the outbound replication queue in the same transaction,
+     *                the caller reports it to the queue after that.
+     */
+    private static Long putLocally(final String ns, final String key, final String value, final Long timeStamp, final boolean enqueue) {
         return App.getInstance().computeInTransaction(ns, new NamespaceTransactionalComputable<Long>() {
             @Override
             public Long compute(@NotNull final Transaction txn, @NotNull final Store namespace, @NotNull final Store idx, @NotNull final App app) {
-                return putLocally(txn, namespace, idx, app, key, value, timeStamp);
+                final Long result = putLocally(txn, namespace, idx, app, key, value, timeStamp);
+                if (enqueue && result != null) {
+                    app.getOutboundQueue().add(txn, Collections.singletonList(new Pair<>(ns, new KeyValueTuple(key, value, result))));
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Puts all entries in a single transaction, zero timestamp means current time.
+     *
+     * @return new timestamps of entries or nulls for entries which are older than local ones
+     */
+    public static Long[] putLocally(@NotNull final String ns, @NotNull final List<KeyValueTuple> writes) {
+        return putLocally(ns, writes, false);
+    }
+
+    private static Long[] putLocally(@NotNull final String ns, @NotNull final List<KeyValueTuple> writes, final boolean enqueue) {
+        return App.getInstance().computeInTransaction(ns, new NamespaceTransactionalComputable<Long[]>() {
+            @Override
+            public Long[] compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                final Long[] result = new Long[writes.size()];
+                final List<Pair<String, KeyValueTuple>> queued = new ArrayList<>();
+                for (int i = 0; i < result.length; i++) {
+                    final KeyValueTuple write = writes.get(i);
+                    final long timeStamp = write.getTimeStamp();
+                    result[i] = putLocally(txn, namespace, idx, app, write.getKey(), write.getValue(), timeStamp == 0 ? null : timeStamp);
+                    if (enqueue && result[i] != null) {
+                        queued.add(new Pair<>(ns, new KeyValueTuple(write.getKey(), write.getValue(), result[i])));
+                    }
+                }
+                app.getOutboundQueue().add(txn, queued);
+                return result;
+            }
+        });
+    }
+
+    @NotNull
+    private static Map<String, KeyValueTuple> getLocally(@NotNull final String ns, @NotNull final List<String> keys) {
+        final Map<String, KeyValueTuple> local = App.getInstance().computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<Map<String, KeyValueTuple>>() {
+            @Override
+            public Map<String, KeyValueTuple> compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                final Map<String, KeyValueTuple> result = new HashMap<>();
+                for (final String key : keys) {
+                    final ByteIterable valueBytes = namespace.get(txn, StringBinding.stringToEntry(key));
+                    if (valueBytes != null) {
+                        final ValueRecord record = ValueRecord.read(valueBytes);
+                        result.put(key, new KeyValueTuple(key, record.getValue(), record.getTimeStamp()));
+                    }
+                }
+                return result;
             }
         });
+        return local == null ? Collections.<String, KeyValueTuple>emptyMap() : local;
     }
 
     public static Long putLocally(@NotNull final Transaction txn, @NotNull final Store namespace, @NotNull final Store idx,
@@ -341,15 +1336,12 @@ public class Database {
         if (oldValueBytes == null) {
             oldTimeStamp = 0;
         } else {
-            oldTimeStamp = IterableUtils.readLong(oldValueBytes.iterator());
+            oldTimeStamp = ValueRecord.readTimeStamp(oldValueBytes);
             if (oldTimeStamp >= nextTimeStamp) {
                 return null;
             }
         }
-        final LightOutputStream out = new LightOutputStream(10 + value.length()); // 8 per long and 2 additional for str
-        out.writeLong(nextTimeStamp);
-        out.writeString(value);
-        namespace.put(txn, keyBytes, out.asArrayByteIterable());
+        namespace.put(txn, keyBytes, ValueRecord.encode(nextTimeStamp, value, app.valueCompressionThreshold));
         if (oldTimeStamp != 0) {
             final Cursor cursor = idx.openCursor(txn);
             try {
@@ -361,6 +1353,8 @@ public class Database {
             }
         }
         idx.put(txn, LongBinding.longToCompressedEntry(nextTimeStamp), keyBytes);
+        app.getMerkleTree().update(txn, namespace.getName(), key, oldTimeStamp, nextTimeStamp);
+        app.getReadCache().invalidate(namespace.getName(), key, nextTimeStamp);
 
         // update ns idx
         final Store namespacesIdx = app.getNamespacesIdx();
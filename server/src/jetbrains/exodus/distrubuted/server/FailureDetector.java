@@ -0,0 +1,273 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.async.TypeListener;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Phi accrual failure detector. Friends are pinged every probeIntervalMs, intervals between successful
+ * pings give the expected heartbeat interval and phi = -log10(probability that a heartbeat is still to come),
+ * assuming exponentially distributed intervals. Failed requests only make a friend suspected, it's removed
+ * from friends once phi reaches convictPhi. Removed friends are still pinged for downFriendRetentionMs and
+ * added back as soon as they answer.
+ */
+public class FailureDetector {
+
+    private static Logger log = LoggerFactory.getLogger(FailureDetector.class);
+    private static final int SAMPLES = 100;
+    private static final double PHI_FACTOR = 1 / Math.log(10);
+
+    public enum State {
+        ALIVE, SUSPECT, DOWN
+    }
+
+    private final App app;
+    private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober;
+    private final boolean enabled = !"false".equals(System.getProperty("dexodus.failureDetector.enabled"));
+    private final int probeIntervalMs = Integer.getInteger("dexodus.probeIntervalMs", 1000);
+    private final int probeTimeoutMs = Integer.getInteger("dexodus.probeTimeoutMs", 5000);
+    private final int convictPhi = Integer.getInteger("dexodus.convictPhi", 8);
+    private final int downFriendRetentionMs = Integer.getInteger("dexodus.downFriendRetentionMs", 3600000);
+
+    public FailureDetector(@NotNull final App app) {
+        this.app = app;
+        if (!enabled) {
+            log.info("Failure detector disabled");
+            prober = null;
+            return;
+        }
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "failure-detector");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        app.addFriendsListener(new App.FriendsListener() {
+            @Override
+            public void friendAdded(@NotNull final String friend) {
+                getMember(friend).setAlive(System.currentTimeMillis());
+            }
+
+            @Override
+            public void friendRemoved(@NotNull final String friend) {
+                getMember(friend).setDown(System.currentTimeMillis());
+            }
+        });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe();
+                } catch (Throwable t) {
+                    log.error("Failure detector error", t);
+                }
+            }
+        }, probeIntervalMs, probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called on a failed request to the friend. Without the detector the friend is removed at once.
+     */
+    public void reportFailure(@NotNull final String friend) {
+        if (!enabled) {
+            app.removeFriends(friend);
+            return;
+        }
+        final Member member = members.get(friend);
+        if (member != null && member.suspect()) {
+            log.info("Suspect friend [" + friend + "]");
+            final GossipMembership gossip = app.getGossip();
+            if (gossip != null) {
+                gossip.suspect(friend);
+            }
+        }
+    }
+
+    /**
+     * Same as reportFailure(friend), but a request rejected by the limit of requests in flight to the friend
+     * isn't its failure.
+     */
+    public void reportFailure(@NotNull final String friend, @NotNull final Throwable t) {
+        if (!RemoteConnector.isOverloaded(t)) {
+            reportFailure(friend);
+        }
+    }
+
+    public boolean isSuspected(@NotNull final String friend) {
+        final Member member = members.get(friend);
+        return member != null && member.getState() == State.SUSPECT;
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        final long[] counts = new long[State.values().length];
+        for (final Member member : members.values()) {
+            counts[member.getState().ordinal()]++;
+        }
+        for (final State state : State.values()) {
+            result.put(state.name().toLowerCase(Locale.ROOT), counts[state.ordinal()]);
+        }
+        return result;
+    }
+
+    public void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+    }
+
+    private void probe() {
+        for (final String friend : app.getFriends()) {
+            getMember(friend);
+        }
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Member> entry : members.entrySet()) {
+            final String friend = entry.getKey();
+            final Member member = entry.getValue();
+            if (member.getState() == State.DOWN) {
+                if (now - member.getDownSince() > downFriendRetentionMs) {
+                    members.remove(friend, member);
+                    continue;
+                }
+            } else if (member.getPhi(now, probeIntervalMs) >= convictPhi) {
+                log.warn("Friend [" + friend + "] is down, no answers for " + (now - member.getLastHeartbeat()) + " ms");
+                final GossipMembership gossip = app.getGossip();
+                if (gossip != null) {
+                    gossip.down(friend);
+                }
+                app.removeFriends(friend);
+            }
+            ping(friend, member, now);
+        }
+    }
+
+    private void ping(@NotNull final String friend, @NotNull final Member member, final long now) {
+        final Future<String> pending = member.probe;
+        if (pending != null && !pending.isDone()) {
+            if (now - member.probeStarted < probeTimeoutMs) {
+                return;
+            }
+            pending.cancel(true);
+        }
+        member.probeStarted = now;
+        member.probe = RemoteConnector.getInstance().pingAsync(friend, new TypeListener<String>(RemoteConnector.STRING_TYPE) {
+            @Override
+            public void onComplete(Future<String> f) throws InterruptedException {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    reportFailure(friend, e);
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                }
+                final State prev = member.heartbeat(System.currentTimeMillis());
+                if (prev == State.DOWN) {
+                    log.info("Friend [" + friend + "] is back");
+                    app.addFriends(friend);
+                } else if (prev == State.SUSPECT) {
+                    log.info("Friend [" + friend + "] is not suspected anymore");
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private Member getMember(@NotNull final String friend) {
+        Member result = members.get(friend);
+        if (result == null) {
+            final Member newMember = new Member(System.currentTimeMillis());
+            result = members.putIfAbsent(friend, newMember);
+            if (result == null) {
+                result = newMember;
+            }
+        }
+        return result;
+    }
+
+    private static class Member {
+
+        private final long[] intervals = new long[SAMPLES];
+        private int position;
+        private int count;
+        private long sum;
+        private long lastHeartbeat;
+        private long downSince;
+        private State state = State.ALIVE;
+        // written by the prober thread only
+        private volatile Future<String> probe;
+        private long probeStarted;
+
+        private Member(final long now) {
+            lastHeartbeat = now;
+        }
+
+        private synchronized State getState() {
+            return state;
+        }
+
+        private synchronized long getLastHeartbeat() {
+            return lastHeartbeat;
+        }
+
+        private synchronized long getDownSince() {
+            return downSince;
+        }
+
+        private synchronized double getPhi(final long now, final long defaultInterval) {
+            final double mean = count == 0 ? defaultInterval : (double) sum / count;
+            return PHI_FACTOR * (now - lastHeartbeat) / mean;
+        }
+
+        // returns previous state
+        private synchronized State heartbeat(final long now) {
+            final State result = state;
+            if (state != State.DOWN) {
+                final long interval = now - lastHeartbeat;
+                if (count == SAMPLES) {
+                    sum -= intervals[position];
+                } else {
+                    count++;
+                }
+                intervals[position] = interval;
+                sum += interval;
+                position = (position + 1) % SAMPLES;
+                state = State.ALIVE;
+            }
+            lastHeartbeat = now;
+            return result;
+        }
+
+        private synchronized boolean suspect() {
+            if (state == State.ALIVE) {
+                state = State.SUSPECT;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void setAlive(final long now) {
+            if (state == State.DOWN) {
+                state = State.ALIVE;
+                lastHeartbeat = now;
+            }
+        }
+
+        private synchronized void setDown(final long now) {
+            if (state != State.DOWN) {
+                state = State.DOWN;
+                downSince = now;
+            }
+        }
+    }
+}
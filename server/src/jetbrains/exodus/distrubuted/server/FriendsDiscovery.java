@@ -55,6 +55,9 @@ public class FriendsDiscovery {
 
                         if (URI.create(data).equals(App.getInstance().getBaseURI())) {
                             log.info("Do not make friends with myself");
+                        } else if (App.getInstance().getGossip() != null) {
+                            // friends of friends come by gossip
+                            App.getInstance().join(data);
                         } else {
                             // make friends
                             App.getInstance().addFriends(data);
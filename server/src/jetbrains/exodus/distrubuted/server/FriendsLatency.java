@@ -0,0 +1,184 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.async.ITypeListener;
+import com.sun.jersey.api.client.async.TypeListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Observed response times of friends: exponentially weighted average used to prefer fast friends and
+ * percentiles of last SAMPLES responses used for hedging delays and timeouts. Failed requests count
+ * as responses taking maxTimeout, so failing friends sink to the end of the order.
+ */
+public class FriendsLatency {
+
+    private static final int SAMPLES = 64;
+    private static final int MIN_SAMPLES = 16;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final ConcurrentMap<String, Stats> friends = new ConcurrentHashMap<>();
+    private final boolean hedgingEnabled = !"false".equals(System.getProperty("dexodus.hedge.enabled"));
+    private final int defaultHedgeDelay = Integer.getInteger("dexodus.hedgeDelayMs", 50);
+    private final int minTimeout = Integer.getInteger("dexodus.replicationTimeoutMinMs", 100);
+    private final int maxTimeout = Integer.getInteger("dexodus.replicationTimeoutMaxMs", 1000);
+    private final int timeoutFactor = Integer.getInteger("dexodus.replicationTimeoutFactor", 4);
+
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    public void record(@NotNull final String friend, final long micros) {
+        getStats(friend).add(micros);
+    }
+
+    public void recordFailure(@NotNull final String friend) {
+        getStats(friend).add(maxTimeout * 1000L);
+    }
+
+    public void forget(@NotNull final String friend) {
+        friends.remove(friend);
+    }
+
+    /**
+     * Sorts friends by average response time, friends without history go first so they get some requests.
+     */
+    @NotNull
+    public String[] order(@NotNull final String[] data) {
+        final Random random = ThreadLocalRandom.current();
+        for (int i = data.length - 1; i > 0; i--) {
+            final int index = random.nextInt(i + 1);
+            final String a = data[index];
+            data[index] = data[i];
+            data[i] = a;
+        }
+        final Map<String, Double> averages = new HashMap<>(data.length * 2);
+        for (final String friend : data) {
+            final Stats stats = friends.get(friend);
+            averages.put(friend, stats == null ? 0 : stats.getAverage());
+        }
+        Arrays.sort(data, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Double.compare(averages.get(o1), averages.get(o2));
+            }
+        });
+        return data;
+    }
+
+    /**
+     * @return ms to wait for the given friends before asking one more, 95th percentile of the slowest of them.
+     */
+    public long getHedgeDelay(@NotNull final Collection<String> to) {
+        final long result = getPercentile(to, 95);
+        return result < 0 ? defaultHedgeDelay : Math.max(1, Math.min(result, maxTimeout));
+    }
+
+    /**
+     * @return ms to wait for the given friends: a multiple of 99th percentile of the slowest of them within bounds.
+     */
+    public long getTimeout(@NotNull final Collection<String> to) {
+        final long result = getPercentile(to, 99);
+        return result < 0 ? maxTimeout : Math.max(minTimeout, Math.min(result * timeoutFactor, maxTimeout));
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new TreeMap<>();
+        for (final Map.Entry<String, Stats> entry : friends.entrySet()) {
+            final Stats stats = entry.getValue();
+            result.put(entry.getKey() + ".avgMicros", (long) stats.getAverage());
+            result.put(entry.getKey() + ".p95Micros", stats.getPercentile(95));
+        }
+        return result;
+    }
+
+    /**
+     * Wraps listener of a request to the friend so that its response time is recorded.
+     */
+    @NotNull
+    public <T> ITypeListener<T> timed(@NotNull final String friend, @NotNull final ITypeListener<T> l) {
+        final long start = System.nanoTime();
+        final GenericType<T> type = l.getGenericType() == null ? new GenericType<T>(l.getType()) : l.getGenericType();
+        return new TypeListener<T>(type) {
+            @Override
+            public void onComplete(Future<T> f) throws InterruptedException {
+                try {
+                    f.get();
+                    record(friend, (System.nanoTime() - start) / 1000);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UniformInterfaceException) {
+                        record(friend, (System.nanoTime() - start) / 1000); // answered with error status
+                    } else if (!RemoteConnector.isOverloaded(e)) {
+                        recordFailure(friend);
+                    }
+                } catch (CancellationException ignore) {
+                }
+                l.onComplete(f);
+            }
+        };
+    }
+
+    // -1 if some of friends has no history yet
+    private long getPercentile(@NotNull final Collection<String> to, final int percentile) {
+        long result = 0;
+        for (final String friend : to) {
+            final Stats stats = friends.get(friend);
+            final long micros = stats == null ? -1 : stats.getPercentile(percentile);
+            if (micros < 0) {
+                return -1;
+            }
+            result = Math.max(result, micros);
+        }
+        return (result + 999) / 1000;
+    }
+
+    @NotNull
+    private Stats getStats(@NotNull final String friend) {
+        Stats result = friends.get(friend);
+        if (result == null) {
+            final Stats newStats = new Stats();
+            result = friends.putIfAbsent(friend, newStats);
+            if (result == null) {
+                result = newStats;
+            }
+        }
+        return result;
+    }
+
+    private static class Stats {
+
+        private final long[] samples = new long[SAMPLES];
+        private int position;
+        private int count;
+        private double average;
+
+        private synchronized void add(final long micros) {
+            average = count == 0 ? micros : average + EWMA_WEIGHT * (micros - average);
+            samples[position] = micros;
+            position = (position + 1) % SAMPLES;
+            if (count < SAMPLES) {
+                count++;
+            }
+        }
+
+        private synchronized double getAverage() {
+            return average;
+        }
+
+        private long getPercentile(final int percentile) {
+            final long[] sorted;
+            synchronized (this) {
+                if (count < MIN_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        }
+    }
+}
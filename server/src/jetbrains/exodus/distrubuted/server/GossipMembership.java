@@ -0,0 +1,335 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.async.TypeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SWIM-style membership dissemination. Every member has a state versioned by its incarnation, changes of the
+ * table are piggybacked on gossip messages sent to fanout random members every intervalMs, each change is
+ * retransmitted retransmitMultiplier * log2(N + 1) times. If digests of the tables differ while neither
+ * side has anything to disseminate, the receiver answers with its whole table and the sender pushes its own
+ * one back. A member which hears it's suspected or down refutes that with a greater incarnation. Joining is
+ * a full exchange with a seed. Members down for downExpiryMs are removed from the table, and for another
+ * downExpiryMs their states not newer than the removed one are ignored, so stale gossip can't bring them back.
+ */
+public class GossipMembership {
+
+    private static Logger log = LoggerFactory.getLogger(GossipMembership.class);
+    public static final String PROTOCOL = "gossip";
+    private static final int MAX_PIGGYBACKED = 32;
+
+    // order matters: with equal incarnations later statuses override earlier ones
+    public enum Status {
+        ALIVE, SUSPECT, DOWN
+    }
+
+    public interface Listener {
+
+        void memberAlive(@NotNull final String url);
+
+        void memberDown(@NotNull final String url);
+    }
+
+    private final String self;
+    private final Listener listener;
+    private final int fanout;
+    private final int retransmitMultiplier;
+    private final long downExpiryMs;
+    private final Random random = new Random();
+    // guarded by this
+    private final Map<String, MemberState> members = new HashMap<>();
+    // member url -> transmissions left, guarded by this
+    private final Map<String, Integer> broadcasts = new LinkedHashMap<>();
+    // member url -> when it was seen down or removed, guarded by this
+    private final Map<String, Long> downSince = new HashMap<>();
+    // member url -> incarnation of the removed state, guarded by this
+    private final Map<String, Long> removed = new HashMap<>();
+    // seed -> whether joining is in progress, seeds which failed to answer are retried every round
+    private final ConcurrentMap<String, Boolean> seeds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService gossiper;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong updatesSent = new AtomicLong();
+    private final AtomicLong fullSyncs = new AtomicLong();
+
+    public GossipMembership(@NotNull final String self, @NotNull final Listener listener,
+                            final int intervalMs, final int fanout, final int retransmitMultiplier, final long downExpiryMs) {
+        this.self = self;
+        this.listener = listener;
+        this.fanout = fanout;
+        this.retransmitMultiplier = retransmitMultiplier;
+        this.downExpiryMs = downExpiryMs;
+        // a restarted member overrides whatever others remember about it
+        members.put(self, new MemberState(self, System.currentTimeMillis(), Status.ALIVE));
+        gossiper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "gossip");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        gossiper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gossip();
+                } catch (Throwable t) {
+                    log.error("Gossip error", t);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Exchanges whole tables with the seed, retries every round until the seed answers.
+     */
+    public void join(@NotNull final String seed) {
+        if (!seed.equals(self) && seeds.putIfAbsent(seed, Boolean.TRUE) == null) {
+            send(seed, getFullMessage());
+        }
+    }
+
+    public void suspect(@NotNull final String url) {
+        update(url, Status.SUSPECT);
+    }
+
+    public void down(@NotNull final String url) {
+        update(url, Status.DOWN);
+    }
+
+    /**
+     * Handles a message of another member.
+     *
+     * @return whole table to a joining member or if tables differ while there is nothing to disseminate,
+     * pending updates otherwise.
+     */
+    @NotNull
+    public GossipMessage handle(@NotNull final GossipMessage message) {
+        received.incrementAndGet();
+        merge(message.getUpdates());
+        if (message.isFull() || (message.getUpdates().isEmpty() && isQuiet() && message.getDigest() != getDigest())) {
+            return getFullMessage();
+        }
+        return getMessage();
+    }
+
+    @NotNull
+    public String[] getAliveMembers() {
+        final List<String> result = new ArrayList<>();
+        synchronized (this) {
+            for (final MemberState state : members.values()) {
+                if (state.getStatus() != Status.DOWN) {
+                    result.add(state.getUrl());
+                }
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        synchronized (this) {
+            result.put("members", (long) members.size());
+            result.put("removed", (long) removed.size());
+            result.put("pendingBroadcasts", (long) broadcasts.size());
+        }
+        result.put("sent", sent.get());
+        result.put("received", received.get());
+        result.put("updatesSent", updatesSent.get());
+        result.put("fullSyncs", fullSyncs.get());
+        return result;
+    }
+
+    public void close() {
+        gossiper.shutdownNow();
+    }
+
+    private void gossip() {
+        expire();
+        for (final Map.Entry<String, Boolean> seed : seeds.entrySet()) {
+            if (seeds.replace(seed.getKey(), Boolean.FALSE, Boolean.TRUE)) {
+                send(seed.getKey(), getFullMessage());
+            }
+        }
+        final List<String> targets = new ArrayList<>();
+        synchronized (this) {
+            for (final MemberState state : members.values()) {
+                if (state.getStatus() != Status.DOWN && !state.getUrl().equals(self)) {
+                    targets.add(state.getUrl());
+                }
+            }
+        }
+        Collections.shuffle(targets, random);
+        for (int i = 0; i < fanout && i < targets.size(); i++) {
+            send(targets.get(i), getMessage());
+        }
+    }
+
+    private void send(@NotNull final String url, @NotNull final GossipMessage message) {
+        sent.incrementAndGet();
+        updatesSent.addAndGet(message.getUpdates().size());
+        if (message.isFull()) {
+            fullSyncs.incrementAndGet();
+        }
+        RemoteConnector.getInstance().gossipAsync(url, message, new TypeListener<GossipMessage>(RemoteConnector.GOSSIP_TYPE) {
+            @Override
+            public void onComplete(Future<GossipMessage> f) throws InterruptedException {
+                final GossipMessage response;
+                try {
+                    response = f.get();
+                } catch (ExecutionException e) {
+                    seeds.replace(url, Boolean.TRUE, Boolean.FALSE);
+                    log.debug("Gossip to [" + url + "] failed: " + e.getMessage());
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                }
+                seeds.remove(url);
+                merge(response.getUpdates());
+                if (response.isFull() && !message.isFull() && response.getDigest() != getDigest()) {
+                    send(url, getFullMessage()); // push what the member misses
+                }
+            }
+        });
+    }
+
+    private void update(@NotNull final String url, @NotNull final Status status) {
+        synchronized (this) {
+            final MemberState current = members.get(url);
+            if (current == null || url.equals(self) || current.getStatus().ordinal() >= status.ordinal()) {
+                return;
+            }
+            put(new MemberState(url, current.getIncarnation(), status));
+        }
+        log.info("Gossip [" + url + "] is " + status);
+    }
+
+    private void merge(@Nullable final List<MemberState> updates) {
+        if (updates == null || updates.isEmpty()) {
+            return;
+        }
+        final List<String> alive = new ArrayList<>();
+        final List<String> down = new ArrayList<>();
+        synchronized (this) {
+            for (final MemberState update : updates) {
+                final String url = update.getUrl();
+                final MemberState current = members.get(url);
+                if (url.equals(self)) {
+                    if (update.getStatus() != Status.ALIVE && update.getIncarnation() >= current.getIncarnation()) {
+                        log.info("Refute being " + update.getStatus() + " at incarnation " + update.getIncarnation());
+                        put(new MemberState(self, update.getIncarnation() + 1, Status.ALIVE));
+                    }
+                    continue;
+                }
+                if (current != null ? !update.supersedes(current) : isRemoved(update)) {
+                    continue;
+                }
+                put(update);
+                final boolean wasDown = current == null || current.getStatus() == Status.DOWN;
+                if (update.getStatus() == Status.DOWN) {
+                    if (!wasDown) {
+                        down.add(url);
+                    }
+                } else if (wasDown) {
+                    alive.add(url);
+                }
+            }
+        }
+        for (final String url : alive) {
+            listener.memberAlive(url);
+        }
+        for (final String url : down) {
+            listener.memberDown(url);
+        }
+    }
+
+    // guarded by this
+    private void put(@NotNull final MemberState state) {
+        final String url = state.getUrl();
+        final MemberState current = members.put(url, state);
+        removed.remove(url);
+        if (state.getStatus() != Status.DOWN) {
+            downSince.remove(url);
+        } else if (current == null || current.getStatus() != Status.DOWN) {
+            downSince.put(url, System.currentTimeMillis());
+        }
+        enqueue(url);
+    }
+
+    // guarded by this
+    private boolean isRemoved(@NotNull final MemberState state) {
+        final Long incarnation = removed.get(state.getUrl());
+        return incarnation != null && state.getIncarnation() <= incarnation;
+    }
+
+    private synchronized void expire() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Long>> itr = downSince.entrySet().iterator();
+        while (itr.hasNext()) {
+            final Map.Entry<String, Long> entry = itr.next();
+            if (now - entry.getValue() < downExpiryMs) {
+                continue;
+            }
+            final String url = entry.getKey();
+            final MemberState state = members.remove(url);
+            if (state != null) {
+                removed.put(url, state.getIncarnation());
+                broadcasts.remove(url);
+                entry.setValue(now);
+                log.info("Gossip [" + url + "] removed after being down for " + downExpiryMs + " ms");
+            } else {
+                removed.remove(url);
+                itr.remove();
+            }
+        }
+    }
+
+    // guarded by this
+    private void enqueue(@NotNull final String url) {
+        broadcasts.remove(url); // to the end of the queue
+        broadcasts.put(url, retransmitMultiplier * (32 - Integer.numberOfLeadingZeros(members.size())));
+    }
+
+    @NotNull
+    private synchronized GossipMessage getMessage() {
+        final List<MemberState> updates = new ArrayList<>(Math.min(MAX_PIGGYBACKED, broadcasts.size()));
+        final Iterator<Map.Entry<String, Integer>> itr = broadcasts.entrySet().iterator();
+        while (itr.hasNext() && updates.size() < MAX_PIGGYBACKED) {
+            final Map.Entry<String, Integer> entry = itr.next();
+            updates.add(members.get(entry.getKey()));
+            if (entry.getValue() <= 1) {
+                itr.remove();
+            } else {
+                entry.setValue(entry.getValue() - 1);
+            }
+        }
+        return new GossipMessage(getDigest(), false, updates);
+    }
+
+    @NotNull
+    private synchronized GossipMessage getFullMessage() {
+        return new GossipMessage(getDigest(), true, new ArrayList<>(members.values()));
+    }
+
+    private synchronized boolean isQuiet() {
+        return broadcasts.isEmpty();
+    }
+
+    // order independent hash of the table
+    private synchronized long getDigest() {
+        long result = 0;
+        for (final MemberState state : members.values()) {
+            result += MerkleTree.mix(MerkleTree.hash(state.getUrl()) + 31 * state.getIncarnation() + state.getStatus().ordinal());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+public class GossipMessage {
+
+    private long digest;
+    // true if updates are the whole member table of the sender
+    private boolean full;
+    @NotNull
+    private List<MemberState> updates;
+
+    public GossipMessage() {
+    }
+
+    public GossipMessage(final long digest, final boolean full, @NotNull final List<MemberState> updates) {
+        this.digest = digest;
+        this.full = full;
+        this.updates = updates;
+    }
+
+    public long getDigest() {
+        return digest;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    @NotNull
+    public List<MemberState> getUpdates() {
+        return updates;
+    }
+}
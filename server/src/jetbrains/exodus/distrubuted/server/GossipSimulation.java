@@ -0,0 +1,146 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs clusters of growing size on loopback ports, every node joins through the first one. Reports how long
+ * it takes for all nodes to know each other and to learn that a node is down, and how many messages it takes.
+ * Usage: GossipSimulation [sizes, comma separated] [first port] [gossip interval ms]
+ */
+public class GossipSimulation {
+
+    private static final long CONVERGENCE_TIMEOUT = 120000;
+
+    public static void main(String[] args) throws Exception {
+        final String[] sizes = (args.length > 0 ? args[0] : "8,16,32,64").split(",");
+        final int firstPort = args.length > 1 ? Integer.parseInt(args[1]) : 9500;
+        final int intervalMs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        System.out.println("nodes\tjoin ms\tjoin msgs\tdown ms\tdown msgs\tupdates/node\tfull syncs");
+        for (final String size : sizes) {
+            run(Integer.parseInt(size.trim()), firstPort, intervalMs);
+        }
+        RemoteConnector.getInstance().destroy();
+    }
+
+    private static void run(final int size, final int firstPort, final int intervalMs) throws Exception {
+        final List<Node> nodes = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                nodes.add(new Node("http://127.0.0.1:" + (firstPort + i) + '/', intervalMs));
+            }
+            final long start = System.currentTimeMillis();
+            for (int i = 1; i < size; i++) {
+                nodes.get(i).gossip.join(nodes.get(0).url);
+            }
+            final long joined = awaitAlive(nodes, size) - start;
+            final long joinMessages = getSent(nodes);
+
+            // stop the last node and let another one announce it
+            final Node stopped = nodes.remove(nodes.size() - 1);
+            stopped.close();
+            final long downStart = System.currentTimeMillis();
+            nodes.get(0).gossip.down(stopped.url);
+            final long down = awaitAlive(nodes, size - 1) - downStart;
+            final long downMessages = getSent(nodes) - joinMessages;
+
+            long updates = 0;
+            long fullSyncs = 0;
+            for (final Node node : nodes) {
+                updates += node.gossip.getStatistics().get("updatesSent");
+                fullSyncs += node.gossip.getStatistics().get("fullSyncs");
+            }
+            System.out.println(size + "\t" + joined + "\t" + joinMessages + "\t" + down + "\t" + downMessages + "\t" +
+                    updates / nodes.size() + "\t" + fullSyncs);
+        } finally {
+            for (final Node node : nodes) {
+                node.close();
+            }
+        }
+    }
+
+    // returns when every node sees expected alive members
+    private static long awaitAlive(@NotNull final List<Node> nodes, final int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            boolean converged = true;
+            for (final Node node : nodes) {
+                if (node.gossip.getAliveMembers().length != expected) {
+                    converged = false;
+                    break;
+                }
+            }
+            if (converged) {
+                return System.currentTimeMillis();
+            }
+            Thread.sleep(5);
+        }
+        throw new IllegalStateException("No convergence in " + CONVERGENCE_TIMEOUT + " ms");
+    }
+
+    private static long getSent(@NotNull final List<Node> nodes) {
+        long result = 0;
+        for (final Node node : nodes) {
+            result += node.gossip.getStatistics().get("sent");
+        }
+        return result;
+    }
+
+    private static class Node {
+
+        private final String url;
+        private final GossipMembership gossip;
+        private final HttpServer server;
+
+        private Node(@NotNull final String url, final int intervalMs) throws IOException {
+            this.url = url;
+            gossip = new GossipMembership(url, new GossipMembership.Listener() {
+                @Override
+                public void memberAlive(@NotNull final String url) {
+                }
+
+                @Override
+                public void memberDown(@NotNull final String url) {
+                }
+            }, intervalMs, 2, 3, 60 * 60 * 1000);
+            final DefaultResourceConfig cfg = new DefaultResourceConfig();
+            cfg.getSingletons().add(new Endpoint(gossip));
+            cfg.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
+            server = HttpServerFactory.create(URI.create(url), cfg);
+            server.start();
+        }
+
+        private void close() {
+            gossip.close();
+            server.stop(0);
+        }
+    }
+
+    @Path("")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static class Endpoint {
+
+        private final GossipMembership gossip;
+
+        public Endpoint(@NotNull final GossipMembership gossip) {
+            this.gossip = gossip;
+        }
+
+        @POST
+        @Path("/_sys/gossip")
+        @Consumes(MediaType.APPLICATION_JSON)
+        public GossipMessage doPostGossip(@NotNull final GossipMessage message) {
+            return gossip.handle(message);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.async.TypeListener;
+import jetbrains.exodus.core.dataStructures.Pair;
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.ByteIterator;
+import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
+import jetbrains.exodus.database.impl.iterate.IterableUtils;
+import jetbrains.exodus.database.impl.iterate.LightOutputStream;
+import jetbrains.exodus.database.persistence.*;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes which couldn't be replicated to a friend, or were coordinated while the friend was removed after
+ * failures, are stored as hints keyed by (friend, namespace, key), the newest value per key only, and
+ * replayed to the friend in batches of hintReplayBatchSize every hintReplayDelayMs once it's added back.
+ * Hints are collected in memory and stored by a single thread, many at a transaction. At most
+ * maxHintsPerFriend keys are kept per friend, the rest is left to background replication.
+ */
+public class HintedHandoff {
+
+    private static Logger log = LoggerFactory.getLogger(HintedHandoff.class);
+
+    private final App app;
+    private final Store hints;
+    private final ExecutorService replayer;
+    private final ExecutorService writer;
+    // (friend, hint) not stored yet
+    private final Queue<Pair<String, Hint>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Set<String> replaying = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // friend -> when it was removed
+    private final ConcurrentMap<String, Long> downFriends = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public HintedHandoff(@NotNull final App app) {
+        this.app = app;
+        hints = app.openSystemStore("hints", StoreConfiguration.WITHOUT_DUPLICATES);
+        countHints();
+        replayer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "hinted-handoff");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "hints-writer");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        app.addFriendsListener(new App.FriendsListener() {
+            @Override
+            public void friendAdded(@NotNull final String friend) {
+                downFriends.remove(friend);
+                replay(friend);
+            }
+
+            @Override
+            public void friendRemoved(@NotNull final String friend) {
+                downFriends.put(friend, System.currentTimeMillis());
+            }
+        });
+    }
+
+    public void add(@NotNull final String friend, @NotNull final String ns, @NotNull final KeyValueTuple write) {
+        if (app.maxHintsPerFriend <= 0) {
+            return;
+        }
+        pending.add(new Pair<>(friend, new Hint(ns, write)));
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Friends removed because of failures get hints for writes done while they are away, for hintWindowMs at most.
+     * Only the coordinator of the writes adds them, replicas forwarding writes further don't.
+     */
+    public void addForDownFriends(@NotNull final List<Pair<String, KeyValueTuple>> writes) {
+        if (app.isPartitioned() || writes.isEmpty()) {
+            return; // with partitioning, replicas of removed friends are taken over by the next nodes on the ring
+        }
+        final List<String> friends = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Long> entry : downFriends.entrySet()) {
+            if (now - entry.getValue() <= app.hintWindowMs) {
+                friends.add(entry.getKey());
+            } else {
+                downFriends.remove(entry.getKey());
+            }
+        }
+        for (final String friend : friends) {
+            for (final Pair<String, KeyValueTuple> write : writes) {
+                add(friend, write.getFirst(), write.getSecond());
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        final List<Pair<String, Hint>> batch = new ArrayList<>();
+        for (Pair<String, Hint> next = pending.poll(); next != null; next = pending.poll()) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        app.getEnvironment().executeInTransaction(new TransactionalExecutable() {
+            @Override
+            public void execute(@NotNull final Transaction txn) {
+                for (final Pair<String, Hint> next : batch) {
+                    final String friend = next.getFirst();
+                    final Hint hint = next.getSecond();
+                    final KeyValueTuple tuple = hint.write;
+                    final AtomicInteger count = getCount(friend);
+                    final ArrayByteIterable hintKey = getHintKey(friend, hint.ns, tuple.getKey());
+                    final ByteIterable old = hints.get(txn, hintKey);
+                    if (old == null && count.get() >= app.maxHintsPerFriend) {
+                        dropped.incrementAndGet();
+                        continue;
+                    }
+                    if (old != null && ValueRecord.readTimeStamp(old) >= tuple.getTimeStamp()) {
+                        continue;
+                    }
+                    hints.put(txn, hintKey, ValueRecord.encode(tuple.getTimeStamp(), tuple.getValue(), app.valueCompressionThreshold));
+                    if (old == null) {
+                        count.incrementAndGet(); // never rolled back, counts are approximate
+                    }
+                    stored.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public void replay(@NotNull final String friend) {
+        final AtomicInteger count = counts.get(friend);
+        if (count != null && count.get() > 0 && replaying.add(friend)) {
+            replayer.submit(new Replay(friend));
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        long pending = 0;
+        for (final AtomicInteger count : counts.values()) {
+            pending += count.get();
+        }
+        result.put("pending", pending);
+        result.put("stored", stored.get());
+        result.put("dropped", dropped.get());
+        result.put("replayed", replayed.get());
+        return result;
+    }
+
+    public void close() {
+        replayer.shutdownNow();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hints.close();
+    }
+
+    @NotNull
+    private AtomicInteger getCount(@NotNull final String friend) {
+        AtomicInteger result = counts.get(friend);
+        if (result == null) {
+            final AtomicInteger newCount = new AtomicInteger();
+            result = counts.putIfAbsent(friend, newCount);
+            if (result == null) {
+                result = newCount;
+            }
+        }
+        return result;
+    }
+
+    private void countHints() {
+        app.computeInReadonlyTransaction(new TransactionalComputable<Object>() {
+            @Override
+            public Object compute(@NotNull final Transaction txn) {
+                final Cursor cursor = hints.openCursor(txn);
+                try {
+                    while (cursor.getNext()) {
+                        getCount(IterableUtils.readString(cursor.getKey().iterator())).incrementAndGet();
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    @NotNull
+    private List<Hint> readHints(@NotNull final String friend, final int limit) {
+        return app.computeInReadonlyTransaction(new TransactionalComputable<List<Hint>>() {
+            @Override
+            public List<Hint> compute(@NotNull final Transaction txn) {
+                final List<Hint> result = new ArrayList<>();
+                final Cursor cursor = hints.openCursor(txn);
+                try {
+                    ByteIterable value = cursor.getSearchKeyRange(getHintKey(friend, null, null));
+                    while (value != null && result.size() < limit) {
+                        final ByteIterator itr = cursor.getKey().iterator();
+                        if (!friend.equals(IterableUtils.readString(itr))) {
+                            break;
+                        }
+                        final String ns = IterableUtils.readString(itr);
+                        final String key = IterableUtils.readString(itr);
+                        final ValueRecord record = ValueRecord.read(value);
+                        result.add(new Hint(ns, new KeyValueTuple(key, record.getValue(), record.getTimeStamp())));
+                        value = cursor.getNext() ? cursor.getValue() : null;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return result;
+            }
+        });
+    }
+
+    private void deleteHints(@NotNull final String friend, @NotNull final List<Hint> delivered) {
+        final int deleted = app.getEnvironment().computeInTransaction(new TransactionalComputable<Integer>() {
+            @Override
+            public Integer compute(@NotNull final Transaction txn) {
+                int result = 0;
+                for (final Hint hint : delivered) {
+                    final ArrayByteIterable hintKey = getHintKey(friend, hint.ns, hint.write.getKey());
+                    final ByteIterable value = hints.get(txn, hintKey);
+                    // keep hints overwritten by newer writes meanwhile
+                    if (value != null && ValueRecord.readTimeStamp(value) == hint.write.getTimeStamp()) {
+                        hints.delete(txn, hintKey);
+                        result++;
+                    }
+                }
+                return result;
+            }
+        });
+        getCount(friend).addAndGet(-deleted);
+    }
+
+    private static ArrayByteIterable getHintKey(@NotNull final String friend, final String ns, final String key) {
+        final LightOutputStream out = new LightOutputStream();
+        out.writeString(friend);
+        if (ns != null) {
+            out.writeString(ns);
+            out.writeString(key);
+        }
+        return out.asArrayByteIterable();
+    }
+
+    private static class Hint {
+
+        private final String ns;
+        private final KeyValueTuple write;
+
+        private Hint(@NotNull final String ns, @NotNull final KeyValueTuple write) {
+            this.ns = ns;
+            this.write = write;
+        }
+    }
+
+    private static final TypeListener<Integer> NOP_L = new TypeListener<Integer>(RemoteConnector.STATUS_TYPE) {
+        @Override
+        public void onComplete(Future<Integer> f) throws InterruptedException {
+        }
+    };
+
+    private class Replay implements Runnable {
+
+        private final String friend;
+
+        private Replay(@NotNull final String friend) {
+            this.friend = friend;
+        }
+
+        @Override
+        public void run() {
+            log.info("Replaying hints to [" + friend + "]");
+            int total = 0;
+            try {
+                while (true) {
+                    final List<Hint> batch = readHints(friend, app.hintReplayBatchSize);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    final List<Future<Integer>> futures = new ArrayList<>(batch.size());
+                    for (final Hint hint : batch) {
+                        futures.add(app.getReplicationBatcher().submit(friend, hint.ns, hint.write, NOP_L));
+                    }
+                    final List<Hint> delivered = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        final int status = futures.get(i).get(10000, TimeUnit.MILLISECONDS);
+                        // not acceptable means the friend has something newer already
+                        if (status == Response.Status.OK.getStatusCode() || status == Response.Status.NOT_ACCEPTABLE.getStatusCode()) {
+                            delivered.add(batch.get(i));
+                        }
+                    }
+                    deleteHints(friend, delivered);
+                    total += delivered.size();
+                    replayed.addAndGet(delivered.size());
+                    if (delivered.size() < batch.size()) {
+                        log.warn("Friend [" + friend + "] rejected " + (batch.size() - delivered.size()) + " hints, stop replaying");
+                        break;
+                    }
+                    Thread.sleep(app.hintReplayDelayMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Failed to replay hints to [" + friend + "]: " + e.getMessage());
+            } finally {
+                replaying.remove(friend);
+            }
+            log.info("Replayed " + total + " hints to [" + friend + "]");
+        }
+    }
+}
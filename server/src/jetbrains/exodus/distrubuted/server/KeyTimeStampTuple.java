@@ -0,0 +1,27 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+public class KeyTimeStampTuple {
+
+    @NotNull
+    private String key;
+    private long timeStamp;
+
+    public KeyTimeStampTuple() {
+    }
+
+    public KeyTimeStampTuple(@NotNull final String key, final long timeStamp) {
+        this.key = key;
+        this.timeStamp = timeStamp;
+    }
+
+    @NotNull
+    public String getKey() {
+        return key;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+}
@@ -0,0 +1,48 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class KeyValueResult {
+
+    @NotNull
+    private String key;
+    @Nullable
+    private String value;
+    private long timeStamp;
+    private int status;
+
+    public KeyValueResult() {
+    }
+
+    public KeyValueResult(@NotNull final String key, @Nullable final String value, final long timeStamp, final int status) {
+        this.key = key;
+        this.value = value;
+        this.timeStamp = timeStamp;
+        this.status = status;
+    }
+
+    @NotNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return value or null if there is no value by the key.
+     */
+    @Nullable
+    public String getValue() {
+        return value;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * @return http status of the key, OK, NOT_FOUND for reads and NOT_ACCEPTABLE for writes of older values.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
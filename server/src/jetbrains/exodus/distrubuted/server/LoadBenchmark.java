@@ -0,0 +1,160 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests per second of a running node with a growing number of concurrent clients, each client sends its next
+ * request as soon as the previous one is answered. Reads go to keys written beforehand, writes to distinct keys,
+ * both are replicated to quorum of friends by the node unless another consistency level is given. Clients use plain
+ * HttpURLConnection, so their number isn't limited by dexodus.maxRequestsPerFriend of this process.
+ * Usage: LoadBenchmark [url] [get|post] [clients, comma separated] [seconds per step] [keys to read] [consistency]
+ */
+public class LoadBenchmark {
+
+    private static final String NS = "loadbench";
+    private static final byte[] BUFFER = new byte[4096];
+
+    public static void main(String[] args) throws InterruptedException {
+        final String url = args.length > 0 ? args[0] : "http://127.0.0.1:9101/";
+        final boolean write = args.length > 1 && "post".equals(args[1]);
+        final String[] steps = (args.length > 2 ? args[2] : "1,4,16,64,256").split(",");
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        final int keys = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        final String query = args.length > 5 ? "?" + ConsistencyLevel.PARAM + '=' + args[5] : "";
+        int maxClients = 1;
+        for (final String step : steps) {
+            maxClients = Math.max(maxClients, Integer.parseInt(step.trim()));
+        }
+        System.setProperty("http.maxConnections", String.valueOf(maxClients)); // keep-alive connections per node
+
+        if (!write) {
+            for (int i = 0; i < keys; i++) {
+                request(url + NS + "/key" + i, "value=v" + i);
+            }
+        }
+        // the first requests warm up both sides
+        run(url, query, write, Math.min(maxClients, 16), Math.max(1, seconds / 2), keys, new AtomicLong());
+        System.out.println("clients\treq/s\tp50 ms\tp99 ms\tfailed");
+        final AtomicLong sequence = new AtomicLong();
+        for (final String step : steps) {
+            final int clients = Integer.parseInt(step.trim());
+            final long[] latencies = run(url, query, write, clients, seconds, keys, sequence);
+            final long failed = latencies[latencies.length - 1];
+            final int count = latencies.length - 1;
+            Arrays.sort(latencies, 0, count);
+            System.out.println(clients + "\t" + count / seconds + "\t" + (count == 0 ? 0 : latencies[count / 2] / 1e6) + '\t' +
+                    (count == 0 ? 0 : latencies[Math.min(count - 1, count * 99 / 100)] / 1e6) + '\t' + failed);
+        }
+        printStatistics(url);
+        RemoteConnector.getInstance().destroy();
+    }
+
+    // latencies of successful requests in ns, followed by the number of failed ones
+    private static long[] run(@NotNull final String url, @NotNull final String query, final boolean write, final int clients, final int seconds,
+                              final int keys, @NotNull final AtomicLong sequence) throws InterruptedException {
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final long[][] latencies = new long[clients][];
+        final AtomicLong failed = new AtomicLong();
+        final Thread[] threads = new Thread[clients];
+        for (int t = 0; t < clients; t++) {
+            final int client = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(client);
+                    long[] result = new long[1024];
+                    int count = 0;
+                    while (System.currentTimeMillis() < end) {
+                        final long start = System.nanoTime();
+                        final boolean ok = write ?
+                                request(url + NS + "/w" + sequence.incrementAndGet() + query, "value=v") :
+                                request(url + NS + "/key" + random.nextInt(keys) + query, null);
+                        if (!ok) {
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        if (count == result.length) {
+                            result = Arrays.copyOf(result, count * 2);
+                        }
+                        result[count++] = System.nanoTime() - start;
+                    }
+                    latencies[client] = Arrays.copyOf(result, count);
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        int total = 0;
+        for (final long[] l : latencies) {
+            total += l.length;
+        }
+        final long[] result = new long[total + 1];
+        int pos = 0;
+        for (final long[] l : latencies) {
+            System.arraycopy(l, 0, result, pos, l.length);
+            pos += l.length;
+        }
+        result[total] = failed.get();
+        return result;
+    }
+
+    // GET if form is null, POST of the form otherwise
+    private static boolean request(@NotNull final String url, final String form) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(30000);
+            if (form != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(form.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final int status = connection.getResponseCode();
+            // read to the end, so that the connection is reused
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    while (in.read(BUFFER) >= 0) {
+                        // responses aren't checked
+                    }
+                }
+            }
+            return status == HttpURLConnection.HTTP_OK;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private static void printStatistics(@NotNull final String url) {
+        try {
+            final Map<String, Long> stats = RemoteConnector.getInstance().stats(url, 10000);
+            for (final Map.Entry<String, Long> entry : stats.entrySet()) {
+                if (entry.getKey().startsWith("server.") || entry.getKey().startsWith("client.")) {
+                    System.out.println(entry.getKey() + ": " + entry.getValue());
+                }
+            }
+        } catch (TimeoutException | RuntimeException e) {
+            System.out.println("Can't get statistics: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+public class MemberState {
+
+    @NotNull
+    private String url;
+    private long incarnation;
+    @NotNull
+    private GossipMembership.Status status;
+
+    public MemberState() {
+    }
+
+    public MemberState(@NotNull final String url, final long incarnation, @NotNull final GossipMembership.Status status) {
+        this.url = url;
+        this.incarnation = incarnation;
+        this.status = status;
+    }
+
+    @NotNull
+    public String getUrl() {
+        return url;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    @NotNull
+    public GossipMembership.Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Higher incarnation wins, with equal incarnations DOWN overrides SUSPECT which overrides ALIVE.
+     */
+    public boolean supersedes(@NotNull final MemberState other) {
+        return incarnation > other.incarnation || (incarnation == other.incarnation && status.ordinal() > other.status.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        return url + ' ' + status + '@' + incarnation;
+    }
+}
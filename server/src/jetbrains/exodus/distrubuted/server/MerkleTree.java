@@ -0,0 +1,349 @@
+package jetbrains.exodus.distrubuted.server;
+
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.ByteIterator;
+import jetbrains.exodus.database.impl.bindings.LongBinding;
+import jetbrains.exodus.database.impl.bindings.StringBinding;
+import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
+import jetbrains.exodus.database.impl.iterate.IterableUtils;
+import jetbrains.exodus.database.impl.iterate.LightOutputStream;
+import jetbrains.exodus.database.persistence.*;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Per namespace hash trees over the key space. Keys are spread over LEAVES buckets by their ring token, so
+ * a leaf covers a contiguous range of tokens and nodes sharing a range can compare just its leaves. A leaf hash is
+ * the xor of hashes of its (key, timestamp) pairs, so it can be updated incrementally on each put, and
+ * a node hash is the xor of hashes of leaves it covers. Node i at level l covers FANOUT^(DEPTH - l) leaves
+ * starting from leaf i * FANOUT^(DEPTH - l). Only leaf hashes are stored, keys are indexed by leaf when they are
+ * created, so listing a leaf costs its size only.
+ */
+public class MerkleTree {
+
+    private static Logger log = LoggerFactory.getLogger(MerkleTree.class);
+
+    public static final int FANOUT = 16;
+    public static final int DEPTH = 3;
+    public static final int LEAVES = 1 << (4 * DEPTH); // FANOUT ^ DEPTH
+    public static final String PROTOCOL = "merkle";
+    // keys or leaves a transaction of the build writes at most
+    private static final int BUILD_BATCH = 1000;
+
+    private final App app;
+    private final Store hashes;
+    // (ns, leaf, key) -> nothing
+    private final Store keys;
+    private final ExecutorService builder;
+    private final Set<String> building = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public MerkleTree(@NotNull final App app) {
+        this.app = app;
+        hashes = app.openSystemStore("merkle", StoreConfiguration.WITHOUT_DUPLICATES);
+        keys = app.openSystemStore("merkle#keys", StoreConfiguration.WITHOUT_DUPLICATES);
+        builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "merkle-builder");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+
+    public static int getNodeCount(final int level) {
+        return 1 << (4 * level);
+    }
+
+    public static int getLeaf(@NotNull final String ns, @NotNull final String key) {
+        return getLeaf(ConsistentHashRing.getToken(ns, key));
+    }
+
+    private static int getLeaf(final long token) {
+        // signed tokens are ordered on the ring, leaves are ordered the same way
+        return (int) ((token ^ Long.MIN_VALUE) >>> (64 - 4 * DEPTH));
+    }
+
+    /**
+     * @return leaves intersecting any of token ranges [from, to].
+     */
+    @NotNull
+    public static boolean[] getLeaves(@NotNull final List<long[]> ranges) {
+        final boolean[] result = new boolean[LEAVES];
+        for (final long[] range : ranges) {
+            Arrays.fill(result, getLeaf(range[0]), getLeaf(range[1]) + 1, true);
+        }
+        return result;
+    }
+
+    public void update(@NotNull final Transaction txn, @NotNull final String ns, @NotNull final String key,
+                       final long oldTimeStamp, final long timeStamp) {
+        final int leaf = getLeaf(ns, key);
+        final ArrayByteIterable leafKey = getLeafKey(ns, leaf);
+        final ByteIterable hashEntry = hashes.get(txn, leafKey);
+        long hash = hashEntry == null ? 0 : LongBinding.entryToLong(hashEntry);
+        if (oldTimeStamp != 0) {
+            hash ^= hash(key, oldTimeStamp);
+        } else {
+            keys.put(txn, getEntryKey(ns, leaf, key), ByteIterable.EMPTY);
+        }
+        hash ^= hash(key, timeStamp);
+        hashes.put(txn, leafKey, LongBinding.longToEntry(hash));
+    }
+
+    /**
+     * Namespaces filled before the trees were maintained get their tree built in the background at first use.
+     *
+     * @return false if the tree isn't built yet and can't be compared.
+     */
+    public boolean ensureBuilt(@NotNull final String ns) {
+        if (isBuilt(ns)) {
+            return true;
+        }
+        if (building.add(ns)) {
+            try {
+                builder.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!isBuilt(ns)) {
+                                build(ns);
+                            }
+                        } catch (Throwable t) {
+                            log.error("Failed to build hash tree of [" + ns + "]", t);
+                        } finally {
+                            building.remove(ns);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                building.remove(ns); // closed
+            }
+        }
+        return false;
+    }
+
+    private boolean isBuilt(@NotNull final String ns) {
+        final ArrayByteIterable marker = getLeafKey(ns, -1);
+        return app.computeInReadonlyTransaction(new TransactionalComputable<Boolean>() {
+            @Override
+            public Boolean compute(@NotNull final Transaction txn) {
+                // unknown namespace has nothing to build and is not worth creating
+                return hashes.get(txn, marker) != null || app.getNamespaceTimeStamp(ns, txn) == 0;
+            }
+        });
+    }
+
+    /**
+     * Leaf hashes are cleared in the very state the namespace is then read from, puts made after that are xored
+     * into the cleared hashes, so hashes of the read entries are xored into them afterwards. The namespace is read
+     * in a snapshot, hashes and keys are written in short transactions, so writers are never blocked for long.
+     */
+    private void build(@NotNull final String ns) {
+        log.info("Building hash tree of [" + ns + "]");
+        final Environment environment = app.getEnvironment();
+        final Store namespace = app.getNsStores(ns).getFirst();
+        final long[] leafHashes = new long[LEAVES];
+        final Transaction txn = environment.beginTransaction();
+        try {
+            while (true) {
+                deleteRange(txn, hashes, getLeafKey(ns, 0), LEAVES);
+                if (txn.flush()) {
+                    break;
+                }
+                txn.revert();
+            }
+            final List<ArrayByteIterable> entryKeys = new ArrayList<>(BUILD_BATCH);
+            final Cursor cursor = namespace.openCursor(txn);
+            try {
+                while (cursor.getNext()) {
+                    final String key = StringBinding.entryToString(cursor.getKey());
+                    final int leaf = getLeaf(ns, key);
+                    leafHashes[leaf] ^= hash(key, ValueRecord.readTimeStamp(cursor.getValue()));
+                    entryKeys.add(getEntryKey(ns, leaf, key));
+                    if (entryKeys.size() >= BUILD_BATCH) {
+                        putKeys(entryKeys);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            putKeys(entryKeys);
+        } finally {
+            txn.abort();
+        }
+        for (int from = 0; from < LEAVES; from += BUILD_BATCH) {
+            final int to = Math.min(LEAVES, from + BUILD_BATCH);
+            final int first = from;
+            environment.executeInTransaction(new TransactionalExecutable() {
+                @Override
+                public void execute(@NotNull final Transaction txn) {
+                    for (int leaf = first; leaf < to; leaf++) {
+                        if (leafHashes[leaf] != 0) {
+                            final ArrayByteIterable leafKey = getLeafKey(ns, leaf);
+                            final ByteIterable hashEntry = hashes.get(txn, leafKey);
+                            final long hash = hashEntry == null ? 0 : LongBinding.entryToLong(hashEntry);
+                            hashes.put(txn, leafKey, LongBinding.longToEntry(hash ^ leafHashes[leaf]));
+                        }
+                    }
+                }
+            });
+        }
+        environment.executeInTransaction(new TransactionalExecutable() {
+            @Override
+            public void execute(@NotNull final Transaction txn) {
+                hashes.put(txn, getLeafKey(ns, -1), LongBinding.longToEntry(0));
+            }
+        });
+    }
+
+    private void putKeys(@NotNull final List<ArrayByteIterable> entryKeys) {
+        app.getEnvironment().executeInTransaction(new TransactionalExecutable() {
+            @Override
+            public void execute(@NotNull final Transaction txn) {
+                for (final ArrayByteIterable entryKey : entryKeys) {
+                    keys.put(txn, entryKey, ByteIterable.EMPTY);
+                }
+            }
+        });
+        entryKeys.clear();
+    }
+
+    @NotNull
+    public long[] getHashes(@NotNull final String ns, final int level, @NotNull final int[] nodes) {
+        final int width = getNodeCount(DEPTH - level);
+        return app.computeInReadonlyTransaction(new TransactionalComputable<long[]>() {
+            @Override
+            public long[] compute(@NotNull final Transaction txn) {
+                final long[] result = new long[nodes.length];
+                final Cursor cursor = hashes.openCursor(txn);
+                try {
+                    for (int i = 0; i < nodes.length; i++) {
+                        final int to = (nodes[i] + 1) * width;
+                        long hash = 0;
+                        ByteIterable value = cursor.getSearchKeyRange(getLeafKey(ns, nodes[i] * width));
+                        while (value != null && readLeaf(ns, cursor.getKey()) < to) {
+                            hash ^= LongBinding.entryToLong(value);
+                            value = cursor.getNext() ? cursor.getValue() : null;
+                        }
+                        result[i] = hash;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return result;
+            }
+        });
+    }
+
+    @NotNull
+    public List<KeyTimeStampTuple> getLeafEntries(@NotNull final String ns, @NotNull final int[] leaves) {
+        final List<KeyTimeStampTuple> entries = app.computeInReadonlyTransaction(ns, new NamespaceTransactionalComputable<List<KeyTimeStampTuple>>() {
+            @Override
+            public List<KeyTimeStampTuple> compute(@NotNull final Transaction txn, @NotNull final Store namespace, @NotNull final Store idx, @NotNull final App app) {
+                final List<KeyTimeStampTuple> result = new ArrayList<>();
+                final Cursor cursor = keys.openCursor(txn);
+                try {
+                    for (final int leaf : leaves) {
+                        boolean found = cursor.getSearchKeyRange(getLeafKey(ns, leaf)) != null;
+                        while (found) {
+                            final ByteIterator itr = cursor.getKey().iterator();
+                            if (!ns.equals(IterableUtils.readString(itr)) || IterableUtils.readUnsignedShort(itr) != leaf) {
+                                break;
+                            }
+                            final String key = IterableUtils.readString(itr);
+                            final ByteIterable valueBytes = namespace.get(txn, StringBinding.stringToEntry(key));
+                            if (valueBytes != null) {
+                                result.add(new KeyTimeStampTuple(key, ValueRecord.readTimeStamp(valueBytes)));
+                            }
+                            found = cursor.getNext();
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return result;
+            }
+        });
+        return entries == null ? Collections.<KeyTimeStampTuple>emptyList() : entries;
+    }
+
+    public void close() {
+        builder.shutdownNow();
+        hashes.close();
+        keys.close();
+    }
+
+    private static void deleteRange(@NotNull final Transaction txn, @NotNull final Store store,
+                                    @NotNull final ArrayByteIterable from, final int leaves) {
+        final Cursor cursor = store.openCursor(txn);
+        try {
+            final ByteIterator fromItr = from.iterator();
+            final String ns = IterableUtils.readString(fromItr);
+            if (cursor.getSearchKeyRange(from) != null) {
+                do {
+                    final ByteIterator itr = cursor.getKey().iterator();
+                    if (!ns.equals(IterableUtils.readString(itr)) || IterableUtils.readUnsignedShort(itr) >= leaves) {
+                        break;
+                    }
+                    cursor.deleteCurrent();
+                } while (cursor.getNext());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return leaf of a hashes store key, or LEAVES if the key belongs to another namespace.
+     */
+    private static int readLeaf(@NotNull final String ns, @NotNull final ByteIterable leafKey) {
+        final ByteIterator itr = leafKey.iterator();
+        return ns.equals(IterableUtils.readString(itr)) && itr.hasNext() ? IterableUtils.readUnsignedShort(itr) : LEAVES;
+    }
+
+    private static ArrayByteIterable getLeafKey(@NotNull final String ns, final int leaf) {
+        final LightOutputStream out = new LightOutputStream();
+        out.writeString(ns);
+        if (leaf >= 0) {
+            out.writeUnsignedShort(leaf);
+        }
+        return out.asArrayByteIterable();
+    }
+
+    private static ArrayByteIterable getEntryKey(@NotNull final String ns, final int leaf, @NotNull final String key) {
+        final LightOutputStream out = new LightOutputStream();
+        out.writeString(ns);
+        out.writeUnsignedShort(leaf);
+        out.writeString(key);
+        return out.asArrayByteIterable();
+    }
+
+    private static long hash(@NotNull final String key, final long timeStamp) {
+        return mix(hash(key) ^ mix(timeStamp));
+    }
+
+    // 64-bit FNV-1a
+    static long hash(@NotNull final String key) {
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            result ^= key.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        return result;
+    }
+
+    // murmur3 finalizer
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
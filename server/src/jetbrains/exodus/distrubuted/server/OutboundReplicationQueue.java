@@ -0,0 +1,246 @@
+package jetbrains.exodus.distrubuted.server;
+
+import jetbrains.exodus.core.dataStructures.Pair;
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.ByteIterator;
+import jetbrains.exodus.database.impl.bindings.LongBinding;
+import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
+import jetbrains.exodus.database.impl.iterate.IterableUtils;
+import jetbrains.exodus.database.impl.iterate.LightOutputStream;
+import jetbrains.exodus.database.persistence.*;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes acknowledged with ConsistencyLevel.ONE, and writes of this node which didn't reach quorum, are stored
+ * here in the same transaction as the local write and replicated to quorum of friends in the background,
+ * outboundBatchSize writes at a time. Writes which don't reach quorum stay in the queue and are retried every
+ * outboundRetryDelayMs, so they survive restarts and friends being down. An entry is the namespace and the key
+ * followed by the value as a ValueRecord, so large values are kept deflated.
+ */
+public class OutboundReplicationQueue {
+
+    private static Logger log = LoggerFactory.getLogger(OutboundReplicationQueue.class);
+
+    private final App app;
+    private final Store queue;
+    private final ScheduledExecutorService drainer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean requested = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    public OutboundReplicationQueue(@NotNull final App app) {
+        this.app = app;
+        queue = app.openSystemStore("outbound", StoreConfiguration.WITHOUT_DUPLICATES);
+        countPending();
+        drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "outbound-replication");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        // writes left from the previous run are replicated once there are friends to replicate them to
+        app.addFriendsListener(new App.FriendsListener() {
+            @Override
+            public void friendAdded(@NotNull final String friend) {
+                drain();
+            }
+
+            @Override
+            public void friendRemoved(@NotNull final String friend) {
+            }
+        });
+    }
+
+    public void add(@NotNull final List<Pair<String, KeyValueTuple>> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        app.getEnvironment().executeInTransaction(new TransactionalExecutable() {
+            @Override
+            public void execute(@NotNull final Transaction txn) {
+                add(txn, writes);
+            }
+        });
+        added(writes.size());
+    }
+
+    /**
+     * Stores writes in the transaction of the caller, added() has to be called once it's committed.
+     */
+    public void add(@NotNull final Transaction txn, @NotNull final List<Pair<String, KeyValueTuple>> writes) {
+        for (final Pair<String, KeyValueTuple> write : writes) {
+            queue.put(txn, LongBinding.longToEntry(sequence.incrementAndGet()), encode(write.getFirst(), write.getSecond()));
+        }
+    }
+
+    public void added(final int count) {
+        if (count > 0) {
+            pending.addAndGet(count);
+            enqueued.addAndGet(count);
+            drain();
+        }
+    }
+
+    public void drain() {
+        requested.set(true);
+        if (draining.compareAndSet(false, true)) {
+            try {
+                drainer.submit(new Drain());
+            } catch (RejectedExecutionException e) {
+                draining.set(false); // closed
+            }
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        result.put("pending", pending.get());
+        result.put("enqueued", enqueued.get());
+        result.put("replicated", replicated.get());
+        result.put("retried", retried.get());
+        return result;
+    }
+
+    public void close() {
+        drainer.shutdownNow();
+        queue.close();
+    }
+
+    private void countPending() {
+        app.computeInReadonlyTransaction(new TransactionalComputable<Object>() {
+            @Override
+            public Object compute(@NotNull final Transaction txn) {
+                final Cursor cursor = queue.openCursor(txn);
+                try {
+                    if (cursor.getLast()) {
+                        sequence.set(LongBinding.entryToLong(cursor.getKey()));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                pending.set(queue.count(txn));
+                return null;
+            }
+        });
+    }
+
+    @NotNull
+    private Pair<long[], List<Pair<String, KeyValueTuple>>> readBatch(final int limit) {
+        return app.computeInReadonlyTransaction(new TransactionalComputable<Pair<long[], List<Pair<String, KeyValueTuple>>>>() {
+            @Override
+            public Pair<long[], List<Pair<String, KeyValueTuple>>> compute(@NotNull final Transaction txn) {
+                final long[] ids = new long[limit];
+                final List<Pair<String, KeyValueTuple>> writes = new ArrayList<>();
+                final Cursor cursor = queue.openCursor(txn);
+                try {
+                    while (writes.size() < limit && cursor.getNext()) {
+                        final ByteIterable value = cursor.getValue();
+                        final ByteIterator itr = value.iterator();
+                        final String ns = IterableUtils.readString(itr);
+                        final String key = IterableUtils.readString(itr);
+                        final LightOutputStream record = new LightOutputStream(value.getLength());
+                        while (itr.hasNext()) {
+                            record.write(itr.next());
+                        }
+                        final ValueRecord v = ValueRecord.read(record.asArrayByteIterable());
+                        ids[writes.size()] = LongBinding.entryToLong(cursor.getKey());
+                        writes.add(new Pair<>(ns, new KeyValueTuple(key, v.getValue(), v.getTimeStamp())));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return new Pair<>(Arrays.copyOf(ids, writes.size()), writes);
+            }
+        });
+    }
+
+    private void delete(@NotNull final long[] ids) {
+        final int deleted = app.getEnvironment().computeInTransaction(new TransactionalComputable<Integer>() {
+            @Override
+            public Integer compute(@NotNull final Transaction txn) {
+                int result = 0;
+                for (final long id : ids) {
+                    if (queue.delete(txn, LongBinding.longToEntry(id))) {
+                        result++;
+                    }
+                }
+                return result;
+            }
+        });
+        pending.addAndGet(-deleted);
+        replicated.addAndGet(deleted);
+    }
+
+    @NotNull
+    private ByteIterable encode(@NotNull final String ns, @NotNull final KeyValueTuple tuple) {
+        final ArrayByteIterable record = ValueRecord.encode(tuple.getTimeStamp(), tuple.getValue(), app.valueCompressionThreshold);
+        final LightOutputStream out = new LightOutputStream(record.getLength() + ns.length() + tuple.getKey().length() + 2);
+        out.writeString(ns);
+        out.writeString(tuple.getKey());
+        out.write(record.getBytesUnsafe(), 0, record.getLength());
+        return out.asArrayByteIterable();
+    }
+
+    private class Drain implements Runnable {
+
+        @Override
+        public void run() {
+            long delay = -1;
+            requested.set(false);
+            try {
+                final Pair<long[], List<Pair<String, KeyValueTuple>>> batch = readBatch(app.outboundBatchSize);
+                final long[] ids = batch.getFirst();
+                final List<Pair<String, KeyValueTuple>> writes = batch.getSecond();
+                if (writes.isEmpty()) {
+                    return;
+                }
+                final List<Pair<String, KeyValueTuple>> failed = Database.replicateAsync(writes, ConsistencyLevel.QUORUM, false).get();
+                final Set<Pair<String, KeyValueTuple>> kept = Collections.newSetFromMap(new IdentityHashMap<Pair<String, KeyValueTuple>, Boolean>());
+                kept.addAll(failed);
+                final long[] delivered = new long[ids.length - kept.size()];
+                for (int i = 0, j = 0; i < ids.length; i++) {
+                    if (!kept.contains(writes.get(i))) {
+                        delivered[j++] = ids[i];
+                    }
+                }
+                delete(delivered);
+                if (!failed.isEmpty()) {
+                    log.warn(failed.size() + " queued writes didn't reach quorum, retry in " + app.outboundRetryDelayMs + " ms");
+                    retried.addAndGet(failed.size());
+                    delay = app.outboundRetryDelayMs;
+                } else {
+                    delay = 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | RuntimeException e) {
+                log.error("Failed to replicate queued writes", e);
+                delay = app.outboundRetryDelayMs;
+            } finally {
+                if (delay < 0 || drainer.isShutdown()) {
+                    draining.set(false);
+                    // writes committed after the queue was found empty
+                    if (requested.get()) {
+                        drain();
+                    }
+                } else {
+                    drainer.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+}
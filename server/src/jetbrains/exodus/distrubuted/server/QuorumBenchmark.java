@@ -0,0 +1,276 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.async.ITypeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares AsyncQuorum with the former Semaphore based context (kept below as LegacyContext): bytes allocated
+ * per quorum with responses delivered on the calling thread, and latency of 2 of 3 quorums with responses
+ * delivered by other threads, the way Jersey client threads do. Each is measured with all responses
+ * successful and with one failed, the latter mostly allocates the ExecutionException of the failed response.
+ * Usage: QuorumBenchmark [operations] [rounds]
+ */
+public class QuorumBenchmark {
+
+    private static final int QUORUM = 2;
+    private static final int TOTAL = 3;
+
+    private static final AsyncQuorum.ResultFilter<Integer, Integer> MAX = new AsyncQuorum.ResultFilter<Integer, Integer>() {
+        @Nullable
+        @Override
+        public Integer fold(@Nullable Integer prev, @Nullable Integer current) {
+            return prev == null || (current != null && current > prev) ? current : prev;
+        }
+    };
+
+    private interface Factory {
+
+        @NotNull
+        AsyncQuorum.Context<Integer, Integer> create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final Factory current = new Factory() {
+            @NotNull
+            @Override
+            public AsyncQuorum.Context<Integer, Integer> create() {
+                return AsyncQuorum.createContext(QUORUM, TOTAL, MAX, RemoteConnector.STATUS_TYPE);
+            }
+        };
+        final Factory legacy = new Factory() {
+            @NotNull
+            @Override
+            public AsyncQuorum.Context<Integer, Integer> create() {
+                return new LegacyContext<>(QUORUM, TOTAL, MAX);
+            }
+        };
+        final ExecutorService responders = Executors.newFixedThreadPool(TOTAL);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                final boolean print = round == rounds - 1; // the rest is warm-up
+                for (final boolean withFailure : new boolean[]{false, true}) {
+                    final String responses = withFailure ? ", one failed" : ", all succeeded";
+                    measure("legacy" + responses, legacy, responses(withFailure), operations, responders, print);
+                    measure("completable" + responses, current, responses(withFailure), operations, responders, print);
+                }
+            }
+        } finally {
+            responders.shutdownNow();
+        }
+    }
+
+    private static void measure(@NotNull final String name, @NotNull final Factory factory, @NotNull final List<Future<Integer>> responses,
+                                final int operations, @NotNull final ExecutorService responders, final boolean print) throws Exception {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < operations; i++) {
+            final AsyncQuorum.Context<Integer, Integer> ctx = factory.create();
+            for (final Future<Integer> response : responses) {
+                ctx.getListener().onComplete(response);
+            }
+            ctx.get(1, TimeUnit.SECONDS);
+            ctx.cancel(true);
+        }
+        final long bytesPerOp = (threads.getThreadAllocatedBytes(thread) - allocated) / operations;
+
+        final int remoteOperations = operations / 10;
+        final long[] latencies = new long[remoteOperations];
+        final long start = System.nanoTime();
+        for (int i = 0; i < remoteOperations; i++) {
+            final AsyncQuorum.Context<Integer, Integer> ctx = factory.create();
+            final long opStart = System.nanoTime();
+            for (final Future<Integer> response : responses) {
+                final ITypeListener<Integer> listener = ctx.getListener();
+                responders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.onComplete(response);
+                        } catch (InterruptedException ignore) {
+                        }
+                    }
+                });
+            }
+            ctx.get(1, TimeUnit.SECONDS);
+            latencies[i] = System.nanoTime() - opStart;
+            ctx.cancel(true);
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (print) {
+            Arrays.sort(latencies);
+            System.out.println(name + ": " + bytesPerOp + " bytes/op, " + remoteOperations * 1000000000L / elapsed + " ops/s, latency us p50 " +
+                    latencies[remoteOperations / 2] / 1000 + ", p99 " + latencies[remoteOperations * 99 / 100] / 1000);
+        }
+    }
+
+    // the failure comes last, after quorum is reached
+    private static List<Future<Integer>> responses(final boolean withFailure) {
+        final CompletableFuture<Integer> last = new CompletableFuture<>();
+        if (withFailure) {
+            last.completeExceptionally(new IllegalStateException("failed"));
+        } else {
+            last.complete(3);
+        }
+        return Arrays.<Future<Integer>>asList(CompletableFuture.completedFuture(1), CompletableFuture.completedFuture(2), last);
+    }
+
+    /**
+     * AsyncQuorum context as it was before CompletableFuture: an immutable status per response and a semaphore.
+     */
+    private static class LegacyContext<R, T> implements AsyncQuorum.Context<R, T> {
+
+        private static final Future<?>[] NO_FUTURES = new Future<?>[0];
+
+        private final int quorum;
+        private final int total;
+        private final AsyncQuorum.ResultFilter<R, T> filter;
+        private final Semaphore sema = new Semaphore(0);
+        private final AtomicReference<Future<?>[]> futures = new AtomicReference<>();
+        private final AtomicReference<Status<R>> result = new AtomicReference<>(new Status<R>(null, 0, 0));
+
+        private LegacyContext(final int quorum, final int total, @NotNull final AsyncQuorum.ResultFilter<R, T> filter) {
+            this.quorum = quorum;
+            this.total = total;
+            this.filter = filter;
+        }
+
+        @Override
+        public AsyncQuorum.Context<R, T> setFutures(@NotNull final Future<?>... f) {
+            if (!futures.compareAndSet(null, f)) {
+                throw new IllegalStateException("Futures already set");
+            }
+            return this;
+        }
+
+        @Override
+        public AsyncQuorum.Context<R, T> addFuture(@NotNull final Future<?> f) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean await(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+            if (sema.tryAcquire(quorum, timeout, unit)) {
+                sema.release(quorum);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final Future<?>[] f = futures.getAndSet(NO_FUTURES);
+            if (f != null) {
+                for (final Future<?> future : f) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return futures.get() == NO_FUTURES;
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.get() != null;
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            sema.acquire(quorum);
+            return extractResult();
+        }
+
+        @Override
+        public R get(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            sema.tryAcquire(quorum, timeout, unit);
+            return extractResult();
+        }
+
+        @Override
+        public ITypeListener<T> getListener() {
+            return getListener(null);
+        }
+
+        @Override
+        public ITypeListener<T> getListener(@Nullable final AsyncQuorum.ErrorHandler<T> handler) {
+            return new ITypeListener<T>() {
+                @Override
+                public void onComplete(final Future<T> f) throws InterruptedException {
+                    try {
+                        final T r = f.get();
+                        while (true) {
+                            final Status<R> current = result.get();
+                            final R folded = filter.fold(current.result, r);
+                            final Status<R> updated = new Status<>(folded, current.success + 1, current.fail);
+                            if (result.compareAndSet(current, updated)) {
+                                sema.release();
+                                return;
+                            }
+                        }
+                    } catch (ExecutionException e) {
+                        while (true) {
+                            final Status<R> current = result.get();
+                            final Status<R> updated = new Status<>(current.result, current.success, current.fail + 1);
+                            if (result.compareAndSet(current, updated)) {
+                                if (updated.fail > total - quorum) {
+                                    sema.release(quorum);
+                                }
+                                return;
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public com.sun.jersey.api.client.GenericType<T> getGenericType() {
+                    return null;
+                }
+
+                @Override
+                public Class<T> getType() {
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        public CompletableFuture<R> toCompletableFuture() {
+            throw new UnsupportedOperationException();
+        }
+
+        private R extractResult() {
+            final Status<R> status = result.get();
+            if (status.success < quorum) {
+                throw new QuorumException("quorum not reached");
+            }
+            return status.result;
+        }
+    }
+
+    private static class Status<R> {
+
+        @Nullable
+        private final R result;
+        private final int success;
+        private final int fail;
+
+        private Status(@Nullable final R result, final int success, final int fail) {
+            this.result = result;
+            this.success = success;
+            this.fail = fail;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package jetbrains.exodus.distrubuted.server;
+
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.impl.bindings.StringBinding;
+import jetbrains.exodus.database.persistence.*;
+import jetbrains.exodus.env.Environments;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Point read latency of App.computeInTransaction vs App.computeInReadonlyTransaction on a local database,
+ * optionally with a concurrent writer. Usage: ReadBenchmark [keys] [reads] [writer: true|false]
+ */
+public class ReadBenchmark {
+
+    private static Logger log = LoggerFactory.getLogger(ReadBenchmark.class);
+
+    private static final String NS = "bench";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        final boolean withWriter = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        final File dir = Files.createTempDirectory("dexodus-read-bench").toFile();
+        final EnvironmentConfig ec = new EnvironmentConfig();
+        ec.setLogCacheShared(false);
+        final Environment environment = Environments.newInstance(dir, ec);
+        final App app = new App(null, null, null, null, environment);
+        try {
+            for (int from = 0; from < keys; from += 1000) {
+                final int start = from;
+                app.computeInTransaction(NS, new NamespaceTransactionalComputable<Object>() {
+                    @Override
+                    public Object compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                        for (int i = start; i < Math.min(keys, start + 1000); i++) {
+                            Database.putLocally(txn, namespace, idx, app, "key" + i, "value" + i, (long) i + 1);
+                        }
+                        return null;
+                    }
+                });
+            }
+            final boolean[] stop = {false};
+            final Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long timeStamp = keys + 1;
+                    while (!stop[0]) {
+                        final int i = random.nextInt(keys);
+                        final long t = timeStamp++;
+                        app.computeInTransaction(NS, new NamespaceTransactionalComputable<Object>() {
+                            @Override
+                            public Object compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                                return Database.putLocally(txn, namespace, idx, app, "key" + i, "value" + t, t);
+                            }
+                        });
+                    }
+                }
+            });
+            if (withWriter) {
+                writer.setDaemon(true);
+                writer.start();
+            }
+            // first rounds are warm-up
+            for (int round = 0; round < 2; round++) {
+                measure(app, keys, round == 0 ? reads / 4 : reads, false, round == 1);
+                measure(app, keys, round == 0 ? reads / 4 : reads, true, round == 1);
+            }
+            stop[0] = true;
+            if (withWriter) {
+                writer.join();
+            }
+        } finally {
+            app.getMerkleTree().close();
+            app.getHintedHandoff().close();
+            environment.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void measure(@NotNull final App app, final int keys, final int reads, final boolean readonly, final boolean report) {
+        final Random random = new Random(0);
+        final long[] latencies = new long[reads];
+        for (int r = 0; r < reads; r++) {
+            final ByteIterable key = StringBinding.stringToEntry("key" + random.nextInt(keys));
+            final NamespaceTransactionalComputable<String> get = new NamespaceTransactionalComputable<String>() {
+                @Override
+                public String compute(@NotNull Transaction txn, @NotNull Store namespace, @NotNull Store idx, @NotNull App app) {
+                    return ValueRecord.read(namespace.get(txn, key)).getValue();
+                }
+            };
+            final long start = System.nanoTime();
+            if (readonly) {
+                app.computeInReadonlyTransaction(NS, get);
+            } else {
+                app.computeInTransaction(NS, get);
+            }
+            latencies[r] = System.nanoTime() - start;
+        }
+        if (report) {
+            Arrays.sort(latencies);
+            long total = 0;
+            for (final long latency : latencies) {
+                total += latency;
+            }
+            log.info((readonly ? "read-only" : "read-write") + " point reads: avg " + total / reads + " ns, p50 " +
+                    latencies[reads / 2] + " ns, p99 " + latencies[reads * 99 / 100] + " ns, max " + latencies[reads - 1] + " ns");
+        }
+    }
+
+    private static void deleteRecursively(@NotNull final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
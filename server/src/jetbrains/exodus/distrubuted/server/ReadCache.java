@@ -0,0 +1,237 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Values confirmed by read quorum, served without asking friends for at most maxStaleness ms. Bounded by
+ * weight, striped by key, every stripe is a segmented LRU: new entries go to probation segment and are
+ * promoted to protected one when read again, so one-off reads and scans don't flush hot keys.
+ * Local writes of cached keys or of keys being read leave tombstones with the new timestamp, so a quorum
+ * read finished concurrently with a write can't put the older value back. Values are kept as UTF-8 bytes and served as ValueRecords.
+ */
+public class ReadCache {
+
+    private static final int STRIPES = 16;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Stripe[] stripes;
+    private final long maxStaleness;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ReadCache(final long maxWeight, final long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+        stripes = new Stripe[maxWeight > 0 && maxStaleness > 0 ? STRIPES : 0];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(maxWeight / STRIPES);
+        }
+    }
+
+    /**
+     * @return value confirmed not earlier than maxStaleness ms ago or null.
+     */
+    @Nullable
+    public ValueTimeStampTuple get(@NotNull final String ns, @NotNull final String key) {
+        if (stripes.length == 0) {
+            return null;
+        }
+        final String cacheKey = getCacheKey(ns, key);
+        final Entry entry = getStripe(cacheKey).get(cacheKey);
+        if (entry == null || entry.value == null || System.currentTimeMillis() - entry.confirmed > maxStaleness) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ValueRecord(entry.timeStamp, entry.value);
+    }
+
+    public void put(@NotNull final String ns, @NotNull final String key, @NotNull final ValueTimeStampTuple value) {
+        if (stripes.length != 0) {
+            final String cacheKey = getCacheKey(ns, key);
+            getStripe(cacheKey).put(cacheKey, new Entry(value.getTimeStamp(), ValueRecord.of(value).getUtf8(), cacheKey));
+        }
+    }
+
+    public void invalidate(@NotNull final String ns, @NotNull final String key, final long timeStamp) {
+        if (stripes.length != 0) {
+            final String cacheKey = getCacheKey(ns, key);
+            getStripe(cacheKey).invalidate(cacheKey, timeStamp);
+        }
+    }
+
+    /**
+     * Should be called before the local value is read and followed by readFinished() after the result is put.
+     */
+    public void readStarted(@NotNull final String ns, @NotNull final String key) {
+        if (stripes.length != 0) {
+            final String cacheKey = getCacheKey(ns, key);
+            getStripe(cacheKey).readStarted(cacheKey);
+        }
+    }
+
+    public void readFinished(@NotNull final String ns, @NotNull final String key) {
+        if (stripes.length != 0) {
+            final String cacheKey = getCacheKey(ns, key);
+            getStripe(cacheKey).readFinished(cacheKey);
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        long weight = 0;
+        for (final Stripe stripe : stripes) {
+            weight += stripe.getWeight();
+        }
+        result.put("weight", weight);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        return result;
+    }
+
+    private Stripe getStripe(@NotNull final String cacheKey) {
+        final int h = cacheKey.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static String getCacheKey(@NotNull final String ns, @NotNull final String key) {
+        return ns + '\u0000' + key;
+    }
+
+    private static class Entry {
+
+        private final long timeStamp;
+        @Nullable
+        private final byte[] value; // null for tombstones
+        private final long confirmed;
+        private final int weight;
+
+        private Entry(final long timeStamp, @Nullable final byte[] value, @NotNull final String cacheKey) {
+            this.timeStamp = timeStamp;
+            this.value = value;
+            confirmed = System.currentTimeMillis();
+            weight = ENTRY_OVERHEAD + 2 * cacheKey.length() + (value == null ? 0 : value.length);
+        }
+    }
+
+    private class Stripe {
+
+        private final long maxWeight;
+        private final long maxProtectedWeight;
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        // cache key -> number of reads in flight
+        private final Map<String, Integer> reads = new HashMap<>();
+        private long probationWeight;
+        private long protectedWeight;
+
+        private Stripe(final long maxWeight) {
+            this.maxWeight = maxWeight;
+            maxProtectedWeight = maxWeight * PROTECTED_PERCENT / 100;
+        }
+
+        private synchronized long getWeight() {
+            return probationWeight + protectedWeight;
+        }
+
+        @Nullable
+        private synchronized Entry get(@NotNull final String cacheKey) {
+            Entry result = protectedSegment.get(cacheKey);
+            if (result != null) {
+                return result;
+            }
+            result = probation.remove(cacheKey);
+            if (result != null) {
+                probationWeight -= result.weight;
+                protectedSegment.put(cacheKey, result);
+                protectedWeight += result.weight;
+                // demote least recently used protected entries back to probation
+                final Iterator<Map.Entry<String, Entry>> itr = protectedSegment.entrySet().iterator();
+                while (protectedWeight > maxProtectedWeight && itr.hasNext()) {
+                    final Map.Entry<String, Entry> eldest = itr.next();
+                    itr.remove();
+                    protectedWeight -= eldest.getValue().weight;
+                    probation.put(eldest.getKey(), eldest.getValue());
+                    probationWeight += eldest.getValue().weight;
+                }
+            }
+            return result;
+        }
+
+        private synchronized void readStarted(@NotNull final String cacheKey) {
+            final Integer count = reads.get(cacheKey);
+            reads.put(cacheKey, count == null ? 1 : count + 1);
+        }
+
+        private synchronized void readFinished(@NotNull final String cacheKey) {
+            final Integer count = reads.get(cacheKey);
+            if (count == null || count == 1) {
+                reads.remove(cacheKey);
+            } else {
+                reads.put(cacheKey, count - 1);
+            }
+        }
+
+        // no tombstone is needed if there is neither a value to replace nor a read to put one
+        private synchronized void invalidate(@NotNull final String cacheKey, final long timeStamp) {
+            if (reads.containsKey(cacheKey) || protectedSegment.containsKey(cacheKey) || probation.containsKey(cacheKey)) {
+                put(cacheKey, new Entry(timeStamp, null, cacheKey));
+            }
+        }
+
+        private synchronized void put(@NotNull final String cacheKey, @NotNull final Entry entry) {
+            Entry old = protectedSegment.get(cacheKey);
+            final boolean isProtected = old != null;
+            if (old == null) {
+                old = probation.get(cacheKey);
+            }
+            if (old != null) {
+                // older value never replaces newer one, except for expired tombstones of writes which could fail;
+                // tombstone of the write which has put the cached value itself is ignored
+                final boolean isOlder = old.timeStamp > entry.timeStamp || (entry.value == null && old.timeStamp == entry.timeStamp);
+                if (isOlder && (old.value != null || System.currentTimeMillis() - old.confirmed <= maxStaleness)) {
+                    return;
+                }
+                if (isProtected) {
+                    protectedSegment.put(cacheKey, entry);
+                    protectedWeight += entry.weight - old.weight;
+                } else {
+                    probation.put(cacheKey, entry);
+                    probationWeight += entry.weight - old.weight;
+                }
+            } else {
+                probation.put(cacheKey, entry);
+                probationWeight += entry.weight;
+            }
+            evict();
+        }
+
+        private void evict() {
+            while (probationWeight + protectedWeight > maxWeight) {
+                final LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+                final Iterator<Entry> itr = segment.values().iterator();
+                if (!itr.hasNext()) {
+                    break;
+                }
+                final Entry eldest = itr.next();
+                itr.remove();
+                if (segment == probation) {
+                    probationWeight -= eldest.weight;
+                } else {
+                    protectedWeight -= eldest.weight;
+                }
+                evictions.incrementAndGet();
+            }
+        }
+    }
+}
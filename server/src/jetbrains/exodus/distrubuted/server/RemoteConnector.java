@@ -5,6 +5,7 @@ import com.sun.jersey.api.client.async.ITypeListener;
 import com.sun.jersey.api.client.async.TypeListener;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.api.client.filter.ClientFilter;
 import com.sun.jersey.api.json.JSONConfiguration;
 import com.sun.jersey.core.util.MultivaluedMapImpl;
 import org.jetbrains.annotations.NotNull;
@@ -14,12 +15,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RemoteConnector {
 
@@ -52,21 +52,170 @@ public class RemoteConnector {
         public void onComplete(Future<ValueTimeStampTuple> f) throws InterruptedException {
         }
     };
-    private static final GenericType<List<NameSpaceKVIterableTuple>> DATA_TYPE = new GenericType<List<NameSpaceKVIterableTuple>>() {
+    private static final GenericType<DataChunk> DATA_TYPE = new GenericType<>(DataChunk.class);
+    private static final TypeListener<DataChunk> DATA_L = new TypeListener<DataChunk>(DATA_TYPE) {
+        @Override
+        public void onComplete(Future<DataChunk> f) throws InterruptedException {
+        }
+    };
+    private static final GenericType<List<NameSpaceKVIterableTuple>> LEGACY_DATA_TYPE = new GenericType<List<NameSpaceKVIterableTuple>>() {
     };
-    private static final TypeListener<List<NameSpaceKVIterableTuple>> DATA_L = new TypeListener<List<NameSpaceKVIterableTuple>>(DATA_TYPE) {
+    private static final TypeListener<List<NameSpaceKVIterableTuple>> LEGACY_DATA_L = new TypeListener<List<NameSpaceKVIterableTuple>>(LEGACY_DATA_TYPE) {
         @Override
         public void onComplete(Future<List<NameSpaceKVIterableTuple>> f) throws InterruptedException {
         }
     };
+    private static final Set<String> PROBING = Collections.unmodifiableSet(new HashSet<String>());
+
+    public static final GenericType<KeyValueTuple[]> KV_ARR_TYPE = new GenericType<>(KeyValueTuple[].class);
+    public static final GenericType<ScanResult> SCAN_TYPE = new GenericType<>(ScanResult.class);
+    public static final GenericType<Integer> STATUS_TYPE = new GenericType<>(Integer.class);
+    public static final GenericType<WriteBatchResult> BATCH_RESULT_TYPE = new GenericType<>(WriteBatchResult.class);
+    private static final GenericType<long[]> HASHES_TYPE = new GenericType<>(long[].class);
+    private static final TypeListener<long[]> HASHES_L = new TypeListener<long[]>(HASHES_TYPE) {
+        @Override
+        public void onComplete(Future<long[]> f) throws InterruptedException {
+        }
+    };
+    public static final GenericType<KeyTimeStampTuple> KEY_TS_TYPE = new GenericType<>(KeyTimeStampTuple.class);
+    private static final GenericType<Map<String, Long>> STATS_TYPE = new GenericType<Map<String, Long>>() {
+    };
+    private static final TypeListener<Map<String, Long>> STATS_L = new TypeListener<Map<String, Long>>(STATS_TYPE) {
+        @Override
+        public void onComplete(Future<Map<String, Long>> f) throws InterruptedException {
+        }
+    };
+    public static final GenericType<GossipMessage> GOSSIP_TYPE = new GenericType<>(GossipMessage.class);
+    private static final GenericType<KeyTimeStampTuple[]> KEYS_TYPE = new GenericType<>(KeyTimeStampTuple[].class);
+    private static final TypeListener<KeyTimeStampTuple[]> KEYS_L = new TypeListener<KeyTimeStampTuple[]>(KEYS_TYPE) {
+        @Override
+        public void onComplete(Future<KeyTimeStampTuple[]> f) throws InterruptedException {
+        }
+    };
 
     private final Client c;
+    private final ThreadPoolExecutor executor;
+    private final boolean binaryEnabled = !"false".equals(System.getProperty("dexodus.binary.enabled"));
+    private final int clientThreads = Integer.getInteger("dexodus.clientThreads", 64);
+    private final int maxRequestsPerFriend = Integer.getInteger("dexodus.maxRequestsPerFriend", 16);
+    private final int friendLimitWaitMs = Integer.getInteger("dexodus.friendLimitWaitMs",
+            Integer.getInteger("dexodus.replicationTimeoutMaxMs", 1000));
+    private final int connectTimeoutMs = Integer.getInteger("dexodus.connectTimeoutMs", 1000);
+    private final int readTimeoutMs = Integer.getInteger("dexodus.readTimeoutMs", 30000);
+    // host:port -> permits for requests in flight
+    private final ConcurrentMap<String, Semaphore> friendPermits = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+    // friend url -> protocols it supports, PROBING until the probe answers, empty for nodes having no protocols
+    private final ConcurrentMap<String, Set<String>> friendProtocols = new ConcurrentHashMap<>();
+    private final FriendsLatency latency = new FriendsLatency();
 
+    /**
+     * Requests are executed by at most clientThreads threads over keep-alive connections of HttpURLConnection,
+     * at most maxRequestsPerFriend of them to the same friend at a time, so a slow friend can't take all threads.
+     * Requests over the limit wait for one of them to complete, at most friendLimitWaitMs or until they are
+     * cancelled by the quorum timeout, then fail with FriendOverloadedException.
+     */
     public RemoteConnector() {
         ClientConfig clientConfig = new DefaultClientConfig();
         clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
         clientConfig.getProperties().put(ClientConfig.PROPERTY_FOLLOW_REDIRECTS, Boolean.TRUE);
+        clientConfig.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, connectTimeoutMs);
+        clientConfig.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, readTimeoutMs);
+        clientConfig.getClasses().add(BinaryProvider.class);
         c = Client.create(clientConfig);
+        if (clientThreads > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = new ThreadPoolExecutor(clientThreads, clientThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull final Runnable r) {
+                    final Thread result = new Thread(r, "remote-" + threadCount.incrementAndGet());
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            c.setExecutorService(executor);
+        } else {
+            executor = null;
+        }
+        if (maxRequestsPerFriend > 0) {
+            c.addFilter(new FriendLimitFilter());
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        if (executor != null) {
+            result.put("activeThreads", (long) executor.getActiveCount());
+            result.put("queued", (long) executor.getQueue().size());
+        }
+        result.put("rejectedByFriendLimit", rejected.get());
+        return result;
+    }
+
+    @NotNull
+    public FriendsLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * Friends are talked to in JSON until they report binary protocol support, so older nodes keep working.
+     */
+    public boolean isBinary(@NotNull final String url) {
+        return binaryEnabled && supports(url, BinaryCodec.PROTOCOL);
+    }
+
+    /**
+     * Waits for the protocols of the friend if they aren't known yet.
+     */
+    public boolean supports(@NotNull final String url, @NotNull final String protocol, final long timeout) throws TimeoutException {
+        Set<String> result = friendProtocols.get(url);
+        if (result == null || result == PROBING) {
+            try {
+                result = new HashSet<>(Arrays.asList(wrapFuture(timeout, c.asyncResource(url + "_sys/protocols").get(STRING_ARR_L))));
+            } catch (UniformInterfaceException e) {
+                result = Collections.emptySet();
+            }
+            friendProtocols.put(url, result);
+        }
+        return result.contains(protocol);
+    }
+
+    public boolean supports(@NotNull final String url, @NotNull final String protocol) {
+        final Set<String> result = friendProtocols.get(url);
+        if (result == null) {
+            probeProtocols(url);
+            return false;
+        }
+        return result.contains(protocol);
+    }
+
+    private void probeProtocols(@NotNull final String url) {
+        if (friendProtocols.putIfAbsent(url, PROBING) != null) {
+            return;
+        }
+        c.asyncResource(url + "_sys/protocols").get(new TypeListener<String[]>(STRING_ARR_TYPE) {
+            @Override
+            public void onComplete(Future<String[]> f) throws InterruptedException {
+                try {
+                    final String[] protocols = f.get();
+                    log.info("Protocols of [" + url + "]: " + Arrays.toString(protocols));
+                    friendProtocols.put(url, new HashSet<>(Arrays.asList(protocols)));
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UniformInterfaceException) {
+                        friendProtocols.replace(url, PROBING, Collections.<String>emptySet());
+                    } else {
+                        friendProtocols.remove(url, PROBING); // not reachable, probe next time
+                    }
+                }
+            }
+        });
+    }
+
+    @NotNull
+    public Future<String> pingAsync(@NotNull final String url, @NotNull final ITypeListener<String> l) {
+        return c.asyncResource(url).get(l);
     }
 
     public String get(@NotNull final String url, @NotNull final String ns,
@@ -85,7 +234,47 @@ public class RemoteConnector {
 
     public Future<ValueTimeStampTuple> getAsyncRepl(@NotNull final String url, @NotNull final String ns,
                                    @NotNull final String key, long timeStamp, @NotNull final ITypeListener<ValueTimeStampTuple> l) {
-        return c.asyncResource(url + ns + '/' + key + '/' + timeStamp).get(l);
+        final AsyncWebResource r = c.asyncResource(url + ns + '/' + key + '/' + timeStamp);
+        return isBinary(url) ? r.accept(BinaryProvider.MEDIA_TYPE).get(latency.timed(url, l)) : r.get(latency.timed(url, l));
+    }
+
+    public ValueTimeStampTuple getRepl(@NotNull final String url, @NotNull final String ns,
+                                       @NotNull final String key, long timeStamp, long timeout) throws TimeoutException {
+        return wrapFuture(timeout, getAsyncRepl(url, ns, key, timeStamp, REPL_L));
+    }
+
+    @NotNull
+    public Future<KeyTimeStampTuple> getAsyncDigest(@NotNull final String url, @NotNull final String ns,
+                                                    @NotNull final String key, @NotNull final ITypeListener<KeyTimeStampTuple> l) {
+        return c.asyncResource(url + "_sys/digest/" + ns + '/' + key).get(latency.timed(url, l));
+    }
+
+    @NotNull
+    public Future<KeyValueTuple[]> getBatchAsyncRepl(@NotNull final String url, @NotNull final String ns,
+                                                     @NotNull final List<KeyTimeStampTuple> keys, @NotNull final ITypeListener<KeyValueTuple[]> l) {
+        return c.asyncResource(url + "_sys/repl/read/" + ns).type(MediaType.APPLICATION_JSON_TYPE).post(latency.timed(url, l), keys);
+    }
+
+    @NotNull
+    public Future<ScanResult> scanLocalAsync(@NotNull final String url, @NotNull final String ns, @Nullable final String prefix,
+                                             @Nullable final String from, @Nullable final String to, @Nullable final String after,
+                                             final int limit, @NotNull final ITypeListener<ScanResult> l) {
+        final MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        params.add("mode", "local");
+        params.add("limit", String.valueOf(limit));
+        if (prefix != null) {
+            params.add("prefix", prefix);
+        }
+        if (from != null) {
+            params.add("from", from);
+        }
+        if (to != null) {
+            params.add("to", to);
+        }
+        if (after != null) {
+            params.add("after", after);
+        }
+        return c.asyncResource(url + "_sys/scan/" + ns).queryParams(params).get(l);
     }
 
     public ClientResponse put(@NotNull final String url, @NotNull final String ns,
@@ -95,26 +284,44 @@ public class RemoteConnector {
 
     public ClientResponse put(@NotNull final String url, @NotNull final String ns, @NotNull final String key,
                               @NotNull String value, long timeout, @Nullable final Long timeStamp) throws TimeoutException {
-        return wrapFuture(timeout, putAsync(url, ns, key, value, RESP_L, timeStamp));
+        return wrapFuture(timeout, putAsync(url, ns, key, value, RESP_L, timeStamp, false));
     }
 
     @NotNull
     public Future<ClientResponse> putAsync(@NotNull final String url, @NotNull final String ns, @NotNull final String key,
                                            @NotNull String value) {
-        return putAsync(url, ns, key, value, RESP_L, null);
+        return putAsync(url, ns, key, value, RESP_L, null, false);
     }
 
+    /**
+     * @param replica true if the put replicates a write this node is the coordinator of, it is sent to the internal
+     *                path then unless the friend doesn't support it yet, so the friend replicates the write once more.
+     */
     @NotNull
     public Future<ClientResponse> putAsync(@NotNull final String url, @NotNull final String ns, @NotNull final String key,
-                                           @NotNull String value, @NotNull final ITypeListener<ClientResponse> l, @Nullable final Long timeStamp) {
-        AsyncWebResource r = c.asyncResource(url + ns + '/' + key);
+                                           @NotNull String value, @NotNull final ITypeListener<ClientResponse> l,
+                                           @Nullable final Long timeStamp, final boolean replica) {
+        final String path = replica && supports(url, Database.REPLICA_WRITE_PROTOCOL) ? Database.SYSTEM_PREFIX + "/repl/" : "";
+        AsyncWebResource r = c.asyncResource(url + path + ns + '/' + key);
+        if (timeStamp != null && isBinary(url)) {
+            return r.type(BinaryProvider.MEDIA_TYPE).post(latency.timed(url, l), new ValueTimeStampTuple(timeStamp, value));
+        }
         if (timeStamp != null) {
             r = r.queryParam("timeStamp", timeStamp.toString());
         }
-        r.type(MediaType.APPLICATION_FORM_URLENCODED_TYPE);
         final MultivaluedMap<String, String> formData = new MultivaluedMapImpl();
         formData.add("value", value);
-        return r.post(l, formData);
+        return r.type(MediaType.APPLICATION_FORM_URLENCODED_TYPE).post(latency.timed(url, l), formData);
+    }
+
+    @NotNull
+    public Future<WriteBatchResult> putBatchAsync(@NotNull final String url, @NotNull final WriteBatch batch,
+                                                  @NotNull final ITypeListener<WriteBatchResult> l) {
+        final AsyncWebResource r = c.asyncResource(url + "_sys/repl/batch");
+        if (isBinary(url)) {
+            return r.type(BinaryProvider.MEDIA_TYPE).accept(BinaryProvider.MEDIA_TYPE).post(latency.timed(url, l), batch);
+        }
+        return r.type(MediaType.APPLICATION_JSON_TYPE).post(latency.timed(url, l), batch);
     }
 
     public String[] friends(@NotNull final String url, @Nullable String myUri, long timeout) throws TimeoutException {
@@ -130,13 +337,49 @@ public class RemoteConnector {
         return r.get(l);
     }
 
-    public List<NameSpaceKVIterableTuple> data(@NotNull final String url, final long timeStamp, final long timeout) throws TimeoutException {
-        return wrapFuture(timeout, dataAsync(url, timeStamp, DATA_L));
+    @NotNull
+    public Future<GossipMessage> gossipAsync(@NotNull final String url, @NotNull final GossipMessage message,
+                                             @NotNull final ITypeListener<GossipMessage> l) {
+        return c.asyncResource(url + "_sys/gossip").type(MediaType.APPLICATION_JSON_TYPE).post(l, message);
+    }
+
+    public Map<String, Long> stats(@NotNull final String url, final long timeout) throws TimeoutException {
+        return wrapFuture(timeout, c.asyncResource(url + "_sys/stats").get(STATS_L));
     }
 
-    public Future<List<NameSpaceKVIterableTuple>> dataAsync(@NotNull final String url, final long timeStamp,
-                                                                @NotNull final ITypeListener<List<NameSpaceKVIterableTuple>> l) {
-        return c.asyncResource(url + "data/" + timeStamp).get(l);
+    public DataChunk data(@NotNull final String url, @NotNull final DataRequest request, final long timeout) throws TimeoutException {
+        if (!supports(url, Database.DATA_PROTOCOL, timeout)) {
+            // nodes not upgraded yet return all entries not older than a single timestamp
+            final List<NameSpaceKVIterableTuple> data = wrapFuture(timeout,
+                    c.asyncResource(url + "data/" + getLowestTimeStamp(request)).get(LEGACY_DATA_L));
+            return new DataChunk(data, null);
+        }
+        return wrapFuture(timeout, dataAsync(url, request, DATA_L));
+    }
+
+    // namespaces having no watermark are requested from getTimeStamp()
+    private static long getLowestTimeStamp(@NotNull final DataRequest request) {
+        final Map<String, Long> watermarks = request.getWatermarks();
+        return watermarks.isEmpty() ? 0 : Math.min(request.getTimeStamp(), Collections.min(watermarks.values()));
+    }
+
+    public Future<DataChunk> dataAsync(@NotNull final String url, @NotNull final DataRequest request,
+                                       @NotNull final ITypeListener<DataChunk> l) {
+        final AsyncWebResource r = c.asyncResource(url + "_sys/data");
+        if (isBinary(url)) {
+            return r.type(BinaryProvider.MEDIA_TYPE).accept(BinaryProvider.MEDIA_TYPE).post(l, request);
+        }
+        return r.type(MediaType.APPLICATION_JSON_TYPE).post(l, request);
+    }
+
+    public long[] merkleHashes(@NotNull final String url, @NotNull final String ns, final int level,
+                               @NotNull final int[] nodes, final long timeout) throws TimeoutException {
+        return wrapFuture(timeout, c.asyncResource(url + "_sys/merkle/" + ns + '/' + level).queryParams(toParams("node", nodes)).get(HASHES_L));
+    }
+
+    public KeyTimeStampTuple[] merkleLeaves(@NotNull final String url, @NotNull final String ns,
+                                            @NotNull final int[] leaves, final long timeout) throws TimeoutException {
+        return wrapFuture(timeout, c.asyncResource(url + "_sys/merkle/" + ns + "/leaves").queryParams(toParams("leaf", leaves)).get(KEYS_L));
     }
 
     public void destroy() {
@@ -155,10 +398,71 @@ public class RemoteConnector {
         log.info("" + conn.put(url, "ns1", "key2", val, 1000).getStatus());
         log.info(conn.get(url, "ns1", "key2", 1000));
         log.info(Arrays.toString(conn.friends(url, null, 1000)));
-        log.info("" + conn.data(url, 0, 1000));
+        log.info("" + conn.data(url, new DataRequest(0, Collections.<String, Long>emptyMap(), null), 1000).getData());
         log.info(Arrays.toString(conn.friends(url, null, 1000)));
     }
 
+    /**
+     * @return true if the request failed because too many requests were in flight to the friend, which says
+     * nothing about the friend being alive.
+     */
+    public static boolean isOverloaded(@Nullable Throwable t) {
+        while (t != null) {
+            if (t instanceof FriendOverloadedException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    public static class FriendOverloadedException extends ClientHandlerException {
+
+        public FriendOverloadedException(@NotNull final String friend) {
+            super("Too many requests in flight to " + friend);
+        }
+    }
+
+    private class FriendLimitFilter extends ClientFilter {
+
+        @Override
+        public ClientResponse handle(ClientRequest cr) throws ClientHandlerException {
+            final URI uri = cr.getURI();
+            final String friend = uri.getHost() + ':' + uri.getPort();
+            Semaphore permits = friendPermits.get(friend);
+            if (permits == null) {
+                final Semaphore newPermits = new Semaphore(maxRequestsPerFriend);
+                permits = friendPermits.putIfAbsent(friend, newPermits);
+                if (permits == null) {
+                    permits = newPermits;
+                }
+            }
+            // waiting holds a client thread shared by all friends, a quorum timing out cancels its requests
+            try {
+                if (!permits.tryAcquire(friendLimitWaitMs, TimeUnit.MILLISECONDS)) {
+                    rejected.incrementAndGet();
+                    throw new FriendOverloadedException(friend);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientHandlerException(e);
+            }
+            try {
+                return getNext().handle(cr);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private static MultivaluedMap<String, String> toParams(@NotNull final String name, @NotNull final int[] values) {
+        final MultivaluedMap<String, String> result = new MultivaluedMapImpl();
+        for (final int value : values) {
+            result.add(name, String.valueOf(value));
+        }
+        return result;
+    }
+
     private static <T> T wrapFuture(final long timeout, @NotNull final Future<T> future) throws TimeoutException {
         try {
             return future.get(timeout, TimeUnit.MILLISECONDS);
@@ -0,0 +1,244 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.ITypeListener;
+import com.sun.jersey.api.client.async.TypeListener;
+import jetbrains.exodus.core.dataStructures.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces replicated writes destined for the same friend within replicationBatchWindowMs or up to
+ * replicationBatchSize writes into a single /repl/batch request. Every write gets its own future completed
+ * with its own http status, so quorum of each write is tracked separately. A write fails unless the status
+ * is 2xx or 406, which means the friend has a newer value already. Friends not supporting batches get a
+ * request per write.
+ */
+public class ReplicationBatcher {
+
+    private static Logger log = LoggerFactory.getLogger(ReplicationBatcher.class);
+
+    public static final String PROTOCOL = "batch";
+
+    private final App app;
+    private final ConcurrentMap<String, FriendQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public ReplicationBatcher(@NotNull final App app) {
+        this.app = app;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull final Runnable r) {
+                final Thread result = new Thread(r, "repl-batch");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        app.addFriendsListener(new App.FriendsListener() {
+            @Override
+            public void friendAdded(@NotNull final String friend) {
+            }
+
+            @Override
+            public void friendRemoved(@NotNull final String friend) {
+                // writes already queued are still sent by the scheduled run
+                queues.remove(friend);
+            }
+        });
+    }
+
+    @NotNull
+    public Future<Integer> submit(@NotNull final String friend, @NotNull final String ns, @NotNull final KeyValueTuple write,
+                                  @NotNull final ITypeListener<Integer> l) {
+        final PendingWrite result = new PendingWrite(ns, write, l);
+        getQueue(friend).add(result);
+        return result;
+    }
+
+    @NotNull
+    private FriendQueue getQueue(@NotNull final String friend) {
+        FriendQueue queue = queues.get(friend);
+        if (queue == null) {
+            final FriendQueue newQueue = new FriendQueue(friend);
+            queue = queues.putIfAbsent(friend, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void send(@NotNull final String friend, @NotNull final List<PendingWrite> writes) {
+        final RemoteConnector conn = RemoteConnector.getInstance();
+        if (!conn.supports(friend, PROTOCOL)) {
+            for (final PendingWrite write : writes) {
+                if (!write.isCancelled()) {
+                    sendSingle(conn, friend, write);
+                }
+            }
+            return;
+        }
+        // group by namespace keeping track of which write is where, statuses come in the same order
+        final Map<String, Pair<List<KeyValueTuple>, List<PendingWrite>>> byNamespace = new LinkedHashMap<>();
+        for (final PendingWrite write : writes) {
+            if (write.isCancelled()) {
+                continue; // quorum reached without it
+            }
+            Pair<List<KeyValueTuple>, List<PendingWrite>> nsWrites = byNamespace.get(write.ns);
+            if (nsWrites == null) {
+                nsWrites = new Pair<List<KeyValueTuple>, List<PendingWrite>>(new ArrayList<KeyValueTuple>(), new ArrayList<PendingWrite>());
+                byNamespace.put(write.ns, nsWrites);
+            }
+            nsWrites.getFirst().add(write.write);
+            nsWrites.getSecond().add(write);
+        }
+        if (byNamespace.isEmpty()) {
+            return;
+        }
+        final List<NameSpaceKVIterableTuple> data = new ArrayList<>(byNamespace.size());
+        final List<PendingWrite> ordered = new ArrayList<>(writes.size());
+        for (final Map.Entry<String, Pair<List<KeyValueTuple>, List<PendingWrite>>> entry : byNamespace.entrySet()) {
+            data.add(new NameSpaceKVIterableTuple(entry.getKey(), entry.getValue().getFirst()));
+            ordered.addAll(entry.getValue().getSecond());
+        }
+        log.info("Replicate batch of " + ordered.size() + " writes to: " + friend);
+        conn.putBatchAsync(friend, new WriteBatch(data), new TypeListener<WriteBatchResult>(RemoteConnector.BATCH_RESULT_TYPE) {
+            @Override
+            public void onComplete(Future<WriteBatchResult> f) throws InterruptedException {
+                try {
+                    final int[] statuses = f.get().getStatuses();
+                    if (statuses.length != ordered.size()) {
+                        throw new ExecutionException(new IllegalStateException("Expected " + ordered.size() + " statuses, got " + statuses.length));
+                    }
+                    for (int i = 0; i < statuses.length; i++) {
+                        ordered.get(i).completeWithStatus(statuses[i]);
+                    }
+                } catch (ExecutionException e) {
+                    if (RemoteConnector.isOverloaded(e)) {
+                        getQueue(friend).retry(ordered);
+                        return;
+                    }
+                    for (final PendingWrite write : ordered) {
+                        write.fail(e.getCause());
+                    }
+                }
+            }
+        });
+    }
+
+    private void sendSingle(@NotNull final RemoteConnector conn, @NotNull final String friend, @NotNull final PendingWrite write) {
+        conn.putAsync(friend, write.ns, write.write.getKey(), write.write.getValue(), new TypeListener<ClientResponse>(RemoteConnector.RESP_TYPE) {
+            @Override
+            public void onComplete(Future<ClientResponse> f) throws InterruptedException {
+                try {
+                    final ClientResponse response = f.get();
+                    write.completeWithStatus(response.getStatus());
+                    response.close();
+                } catch (ExecutionException e) {
+                    if (RemoteConnector.isOverloaded(e)) {
+                        getQueue(friend).retry(Collections.singletonList(write));
+                        return;
+                    }
+                    write.fail(e.getCause());
+                }
+            }
+        }, write.write.getTimeStamp(), true);
+    }
+
+    private class FriendQueue implements Runnable {
+
+        private final String friend;
+        private List<PendingWrite> writes = new ArrayList<>();
+        private boolean scheduled;
+
+        private FriendQueue(@NotNull final String friend) {
+            this.friend = friend;
+        }
+
+        private void add(@NotNull final PendingWrite write) {
+            final List<PendingWrite> full;
+            synchronized (this) {
+                writes.add(write);
+                if (writes.size() < app.replicationBatchSize) {
+                    if (!scheduled) {
+                        scheduled = true;
+                        scheduler.schedule(this, app.replicationBatchWindowMs, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                full = takeWrites();
+            }
+            send(friend, full);
+        }
+
+        // the friend is busy, writes wait for the next window unless quorum is reached or timed out meanwhile
+        private synchronized void retry(@NotNull final List<PendingWrite> retried) {
+            for (final PendingWrite write : retried) {
+                if (!write.isDone()) {
+                    writes.add(write);
+                }
+            }
+            if (!scheduled && !writes.isEmpty()) {
+                scheduled = true;
+                scheduler.schedule(this, app.replicationBatchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<PendingWrite> batch;
+            synchronized (this) {
+                scheduled = false;
+                batch = takeWrites();
+            }
+            if (!batch.isEmpty()) {
+                send(friend, batch);
+            }
+        }
+
+        private List<PendingWrite> takeWrites() {
+            final List<PendingWrite> result = writes;
+            writes = new ArrayList<>();
+            return result;
+        }
+    }
+
+    private static class PendingWrite extends CompletableFuture<Integer> {
+
+        private final String ns;
+        private final KeyValueTuple write;
+
+        private PendingWrite(@NotNull final String ns, @NotNull final KeyValueTuple write, @NotNull final ITypeListener<Integer> listener) {
+            this.ns = ns;
+            this.write = write;
+            whenComplete((status, t) -> {
+                try {
+                    listener.onComplete(this);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        private void completeWithStatus(final int status) {
+            if (status / 100 == 2 || status == Response.Status.NOT_ACCEPTABLE.getStatusCode()) {
+                complete(status);
+            } else {
+                fail(new IllegalStateException("Replication of " + write.getKey() + " answered " + status));
+            }
+        }
+
+        private void fail(@NotNull final Throwable t) {
+            completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package jetbrains.exodus.distrubuted.server;
+
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.ByteIterator;
+import jetbrains.exodus.database.impl.bindings.LongBinding;
+import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
+import jetbrains.exodus.database.impl.iterate.IterableUtils;
+import jetbrains.exodus.database.impl.iterate.LightOutputStream;
+import jetbrains.exodus.database.persistence.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per friend and per namespace timestamps of the most recent entries pulled from the friend. They are
+ * updated in the same transaction as the pulled data, so an interrupted pull resumes from the last saved batch.
+ */
+public class ReplicationWatermarks {
+
+    private final App app;
+    private final Store store;
+
+    public ReplicationWatermarks(@NotNull final App app) {
+        this.app = app;
+        store = app.openSystemStore("repl#watermarks", StoreConfiguration.WITHOUT_DUPLICATES);
+    }
+
+    @NotNull
+    public Map<String, Long> get(@NotNull final String friend) {
+        return app.computeInReadonlyTransaction(new TransactionalComputable<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> compute(@NotNull final Transaction txn) {
+                final Map<String, Long> result = new HashMap<>();
+                final ArrayByteIterable prefix = getKey(friend, null);
+                final Cursor cursor = store.openCursor(txn);
+                try {
+                    ByteIterable value = cursor.getSearchKeyRange(prefix);
+                    while (value != null) {
+                        final ByteIterator itr = cursor.getKey().iterator();
+                        if (!friend.equals(IterableUtils.readString(itr))) {
+                            break;
+                        }
+                        result.put(IterableUtils.readString(itr), LongBinding.compressedEntryToLong(value));
+                        value = cursor.getNext() ? cursor.getValue() : null;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return result;
+            }
+        });
+    }
+
+    public void put(@NotNull final Transaction txn, @NotNull final String friend, @NotNull final String ns, final long timeStamp) {
+        store.put(txn, getKey(friend, ns), LongBinding.longToCompressedEntry(timeStamp));
+    }
+
+    public void close() {
+        store.close();
+    }
+
+    private static ArrayByteIterable getKey(@NotNull final String friend, @Nullable final String ns) {
+        final LightOutputStream out = new LightOutputStream();
+        out.writeString(friend);
+        if (ns != null) {
+            out.writeString(ns);
+        }
+        return out.asArrayByteIterable();
+    }
+}
@@ -0,0 +1,35 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+public class ScanResult {
+
+    @NotNull
+    private List<KeyValueTuple> data;
+    @Nullable
+    private String next;
+
+    public ScanResult() {
+    }
+
+    public ScanResult(@NotNull final List<KeyValueTuple> data, @Nullable final String next) {
+        this.data = data;
+        this.next = next;
+    }
+
+    @NotNull
+    public List<KeyValueTuple> getData() {
+        return data;
+    }
+
+    /**
+     * @return last returned key to pass as "after" for the next page, or null if the scan is complete.
+     */
+    @Nullable
+    public String getNext() {
+        return next;
+    }
+}
@@ -1,5 +1,6 @@
 package jetbrains.exodus.distrubuted.server;
 
+import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,6 +14,22 @@ public class Utils {
 
     private static final Logger log = LoggerFactory.getLogger(Utils.class);
 
+    /**
+     * UTF-8 length without encoding, a surrogate pair takes 4 bytes.
+     */
+    public static int getUtf8Length(@NotNull final String s) {
+        int result = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x800) {
+                result += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                result++;
+            }
+        }
+        return result;
+    }
+
     public static List<InetAddress> getBroadcastAddresses() {
         ArrayList<InetAddress> listOfBroadcasts = new ArrayList<>();
 
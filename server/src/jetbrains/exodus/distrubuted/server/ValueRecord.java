@@ -0,0 +1,181 @@
+package jetbrains.exodus.distrubuted.server;
+
+import jetbrains.exodus.database.ByteIterable;
+import jetbrains.exodus.database.ByteIterator;
+import jetbrains.exodus.database.impl.iterate.ArrayByteIterable;
+import jetbrains.exodus.database.impl.iterate.IterableUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stored value with its timestamp: a header byte, the timestamp as varint and UTF-8 bytes of the value,
+ * deflated if the header says so. Values are written deflated if they are at least compressionThreshold bytes
+ * long and compression saves something. Records written by former versions as LightOutputStream long and string
+ * are read too: any first byte which isn't a known header is the top byte of their timestamp with the sign bit
+ * flipped, 0x80 for timestamps in [0, 2^56). Only legacy timestamps below -2^62 could be taken for a header.
+ * The value is decoded to a String on first getValue() only, getUtf8() passes the stored bytes through.
+ */
+public class ValueRecord extends ValueTimeStampTuple {
+
+    private static final int VERSION_1 = 0x10;
+    private static final int VERSION_MASK = 0xf0;
+    private static final int DEFLATED = 0x01;
+
+    @NotNull
+    private final byte[] utf8;
+    private String value;
+
+    public ValueRecord(final long timeStamp, @NotNull final byte[] utf8) {
+        super(timeStamp, null);
+        this.utf8 = utf8;
+    }
+
+    private ValueRecord(final long timeStamp, @NotNull final String value) {
+        super(timeStamp, null);
+        this.utf8 = value.getBytes(StandardCharsets.UTF_8);
+        this.value = value;
+    }
+
+    @Override
+    public String getValue() {
+        String result = value;
+        if (result == null) {
+            value = result = new String(utf8, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * UTF-8 bytes of the value, not to be modified. Not a public getter, so JSON has the value only.
+     */
+    @NotNull
+    byte[] getUtf8() {
+        return utf8;
+    }
+
+    @NotNull
+    public static ValueRecord of(@NotNull final ValueTimeStampTuple tuple) {
+        return tuple instanceof ValueRecord ? (ValueRecord) tuple : new ValueRecord(tuple.getTimeStamp(), tuple.getValue());
+    }
+
+    @NotNull
+    public static ArrayByteIterable encode(final long timeStamp, @NotNull final String value, final int compressionThreshold) {
+        return encode(timeStamp, value.getBytes(StandardCharsets.UTF_8), compressionThreshold);
+    }
+
+    @NotNull
+    public static ArrayByteIterable encode(final long timeStamp, @NotNull final byte[] utf8, final int compressionThreshold) {
+        byte[] payload = utf8;
+        int header = VERSION_1;
+        if (compressionThreshold > 0 && utf8.length >= compressionThreshold) {
+            final byte[] deflated = deflate(utf8);
+            if (deflated.length < utf8.length) {
+                payload = deflated;
+                header |= DEFLATED;
+            }
+        }
+        final byte[] result = new byte[1 + 10 + payload.length];
+        result[0] = (byte) header;
+        int length = writeVarLong(result, 1, timeStamp);
+        System.arraycopy(payload, 0, result, length, payload.length);
+        length += payload.length;
+        return new ArrayByteIterable(result, length);
+    }
+
+    @NotNull
+    public static ValueRecord read(@NotNull final ByteIterable record) {
+        final byte[] bytes = record.getBytesUnsafe();
+        final int length = record.getLength();
+        final int header = bytes[0] & 0xff;
+        if (isLegacy(header)) {
+            final ByteIterator itr = record.iterator();
+            final long timeStamp = IterableUtils.readLong(itr);
+            return new ValueRecord(timeStamp, IterableUtils.readString(itr));
+        }
+        long timeStamp = 0;
+        int position = 1;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = bytes[position++];
+            timeStamp |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        final byte[] payload = Arrays.copyOfRange(bytes, position, length);
+        return new ValueRecord(timeStamp, (header & DEFLATED) == 0 ? payload : inflate(payload));
+    }
+
+    public static long readTimeStamp(@NotNull final ByteIterable record) {
+        final ByteIterator itr = record.iterator();
+        final int header = itr.next() & 0xff;
+        if (isLegacy(header)) {
+            return IterableUtils.readLong(record.iterator());
+        }
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = itr.next();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private static boolean isLegacy(final int header) {
+        return (header & VERSION_MASK) != VERSION_1 || (header & ~(VERSION_MASK | DEFLATED)) != 0;
+    }
+
+    private static int writeVarLong(@NotNull final byte[] buf, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[position++] = (byte) value;
+        return position;
+    }
+
+    @NotNull
+    private static byte[] deflate(@NotNull final byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NotNull
+    private static byte[] inflate(@NotNull final byte[] data) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            final byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated deflated value record");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Malformed deflated value record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
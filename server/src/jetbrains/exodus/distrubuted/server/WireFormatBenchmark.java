@@ -0,0 +1,131 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares CPU time and message sizes of JSON/form encoding and the binary protocol for typical
+ * replication messages. Usage: WireFormatBenchmark [entries per chunk] [value length] [iterations]
+ */
+public class WireFormatBenchmark {
+
+    private static Logger log = LoggerFactory.getLogger(WireFormatBenchmark.class);
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int valueLength = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final Random random = new Random(0);
+        final List<KeyValueTuple> data = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            data.add(new KeyValueTuple("key" + i, randomValue(random, valueLength), System.currentTimeMillis() + i));
+        }
+        final DataChunk chunk = new DataChunk(Collections.singletonList(new NameSpaceKVIterableTuple("ns", data)),
+                new ContinuationToken("ns", System.currentTimeMillis(), "key" + entries));
+        final ValueTimeStampTuple tuple = new ValueTimeStampTuple(System.currentTimeMillis(), randomValue(random, valueLength));
+
+        final ObjectMapper mapper = new ObjectMapper();
+        // warm up both paths before measuring
+        for (int i = 0; i < 2; i++) {
+            final int n = i == 0 ? iterations / 2 : iterations;
+            final long dataJson = measure("data chunk, json", n, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final byte[] bytes = mapper.writeValueAsBytes(chunk);
+                    mapper.readValue(bytes, DataChunk.class);
+                    return bytes.length;
+                }
+            }, i == 1);
+            final long dataBinary = measure("data chunk, binary", n, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final byte[] bytes = BinaryCodec.encode(chunk);
+                    BinaryCodec.decode(DataChunk.class, bytes);
+                    return bytes.length;
+                }
+            }, i == 1);
+            final long replJson = measure("repl get, json", n * entries, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final byte[] bytes = mapper.writeValueAsBytes(tuple);
+                    mapper.readValue(bytes, ValueTimeStampTuple.class);
+                    return bytes.length;
+                }
+            }, i == 1);
+            final long replBinary = measure("repl get, binary", n * entries, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final byte[] bytes = BinaryCodec.encode(tuple);
+                    BinaryCodec.decode(ValueTimeStampTuple.class, bytes);
+                    return bytes.length;
+                }
+            }, i == 1);
+            final long putForm = measure("repl put, form", n * entries, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final String form = "value=" + URLEncoder.encode(tuple.getValue(), "UTF-8");
+                    URLDecoder.decode(form.substring(6), "UTF-8");
+                    return form.length() + ("?timeStamp=" + tuple.getTimeStamp()).length();
+                }
+            }, i == 1);
+            final long putBinary = measure("repl put, binary", n * entries, new Codec() {
+                @Override
+                public int run() throws IOException {
+                    final byte[] bytes = BinaryCodec.encode(tuple);
+                    BinaryCodec.decode(ValueTimeStampTuple.class, bytes);
+                    return bytes.length;
+                }
+            }, i == 1);
+            if (i == 1) {
+                log.info("CPU saved: data chunk " + percent(dataBinary, dataJson) + ", repl get " +
+                        percent(replBinary, replJson) + ", repl put " + percent(putBinary, putForm));
+            }
+        }
+    }
+
+    private static long measure(String name, int iterations, Codec codec, boolean report) throws IOException {
+        final long start = threads.getCurrentThreadCpuTime();
+        long bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            bytes += codec.run();
+        }
+        final long cpu = threads.getCurrentThreadCpuTime() - start;
+        if (report) {
+            log.info(name + ": " + (cpu / iterations) + " ns cpu and " + (bytes / iterations) + " bytes per message");
+        }
+        return cpu;
+    }
+
+    private static String percent(long binary, long text) {
+        return (100 - binary * 100 / Math.max(1, text)) + "%";
+    }
+
+    private static String randomValue(Random random, int length) {
+        final StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // mostly url-safe text with some characters needing escaping
+            final int c = random.nextInt(40);
+            result.append(c < 26 ? (char) ('a' + c) : c < 36 ? (char) ('0' + c - 26) : " &=/".charAt(c - 36));
+        }
+        return result.toString();
+    }
+
+    private interface Codec {
+
+        int run() throws IOException;
+    }
+}
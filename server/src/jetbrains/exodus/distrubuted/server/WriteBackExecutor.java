@@ -0,0 +1,155 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Applies values fetched from friends to the local store in background. Pending writes are coalesced
+ * per (namespace, key) keeping the newest timestamp only, bounded by capacity keys and drained in
+ * transactions of at most batchSize keys per namespace. Writes beyond capacity are dropped and counted:
+ * they are best effort, a later read or anti-entropy repairs the key anyway.
+ */
+public class WriteBackExecutor {
+
+    private static Logger log = LoggerFactory.getLogger(WriteBackExecutor.class);
+
+    private final int capacity;
+    private final int batchSize;
+    private final Thread drainingThread;
+    private final Object lock = new Object();
+    private Map<String, Map<String, KeyValueTuple>> pending = new LinkedHashMap<>();
+    private int pendingCount;
+    private boolean closed;
+
+    // statistics, guarded by lock
+    private long submitted;
+    private long coalesced;
+    private long dropped;
+    private long applied;
+    private long batches;
+    private long failed;
+    private int maxPendingCount;
+
+    public WriteBackExecutor(final int capacity, final int batchSize) {
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        drainingThread = new Thread(new MainLoop());
+        drainingThread.setDaemon(true);
+        drainingThread.setName("write-back");
+        drainingThread.start();
+    }
+
+    public void submit(@NotNull final String ns, @NotNull final Collection<KeyValueTuple> tuples) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            Map<String, KeyValueTuple> nsPending = pending.get(ns);
+            if (nsPending == null) {
+                nsPending = new HashMap<>();
+                pending.put(ns, nsPending);
+            }
+            for (final KeyValueTuple tuple : tuples) {
+                submitted++;
+                final KeyValueTuple old = nsPending.get(tuple.getKey());
+                if (old != null) {
+                    coalesced++;
+                    if (old.getTimeStamp() < tuple.getTimeStamp()) {
+                        nsPending.put(tuple.getKey(), tuple);
+                    }
+                } else if (pendingCount >= capacity) {
+                    dropped++;
+                } else {
+                    nsPending.put(tuple.getKey(), tuple);
+                    pendingCount++;
+                }
+            }
+            maxPendingCount = Math.max(maxPendingCount, pendingCount);
+            lock.notify();
+        }
+    }
+
+    @NotNull
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        synchronized (lock) {
+            result.put("pending", (long) pendingCount);
+            result.put("maxPending", (long) maxPendingCount);
+            result.put("capacity", (long) capacity);
+            result.put("submitted", submitted);
+            result.put("coalesced", coalesced);
+            result.put("dropped", dropped);
+            result.put("applied", applied);
+            result.put("failed", failed);
+            result.put("batches", batches);
+        }
+        return result;
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+        try {
+            drainingThread.join();
+        } catch (InterruptedException e) {
+            log.error("Failed to join write-back thread", e);
+        }
+    }
+
+    private Map<String, Map<String, KeyValueTuple>> takePending() throws InterruptedException {
+        synchronized (lock) {
+            while (pendingCount == 0 && !closed) {
+                lock.wait();
+            }
+            final Map<String, Map<String, KeyValueTuple>> result = pending;
+            pending = new LinkedHashMap<>();
+            pendingCount = 0;
+            return result;
+        }
+    }
+
+    private class MainLoop implements Runnable {
+        @Override
+        public void run() {
+            log.info("Write-back executor started");
+            while (true) {
+                final Map<String, Map<String, KeyValueTuple>> writes;
+                try {
+                    writes = takePending();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (writes.isEmpty()) {
+                    break; // closed and drained
+                }
+                for (final Map.Entry<String, Map<String, KeyValueTuple>> entry : writes.entrySet()) {
+                    final List<KeyValueTuple> nsWrites = new ArrayList<>(entry.getValue().values());
+                    for (int from = 0; from < nsWrites.size(); from += batchSize) {
+                        final List<KeyValueTuple> batch = nsWrites.subList(from, Math.min(nsWrites.size(), from + batchSize));
+                        boolean success = false;
+                        try {
+                            Database.putLocally(entry.getKey(), batch);
+                            success = true;
+                        } catch (Throwable t) {
+                            log.error("Write-back of " + batch.size() + " keys to [" + entry.getKey() + "] failed", t);
+                        }
+                        synchronized (lock) {
+                            batches++;
+                            if (success) {
+                                applied += batch.size();
+                            } else {
+                                failed += batch.size();
+                            }
+                        }
+                    }
+                }
+            }
+            log.info("Write-back executor finished");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+public class WriteBatch {
+
+    @NotNull
+    private List<NameSpaceKVIterableTuple> data;
+
+    public WriteBatch() {
+    }
+
+    public WriteBatch(@NotNull final List<NameSpaceKVIterableTuple> data) {
+        this.data = data;
+    }
+
+    @NotNull
+    public List<NameSpaceKVIterableTuple> getData() {
+        return data;
+    }
+}
@@ -0,0 +1,24 @@
+package jetbrains.exodus.distrubuted.server;
+
+import org.jetbrains.annotations.NotNull;
+
+public class WriteBatchResult {
+
+    @NotNull
+    private int[] statuses;
+
+    public WriteBatchResult() {
+    }
+
+    public WriteBatchResult(@NotNull final int[] statuses) {
+        this.statuses = statuses;
+    }
+
+    /**
+     * @return http status per written entry in order of the batch, NOT_ACCEPTABLE means the entry is older.
+     */
+    @NotNull
+    public int[] getStatuses() {
+        return statuses;
+    }
+}
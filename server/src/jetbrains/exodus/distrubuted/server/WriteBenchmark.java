@@ -0,0 +1,113 @@
+package jetbrains.exodus.distrubuted.server;
+
+import com.sun.jersey.api.client.ClientResponse;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replicated writes per second of a running node: threads post writes of distinct keys for the given time,
+ * every write is acknowledged only after the node has replicated it to a quorum of friends. The benchmark
+ * sends requests through RemoteConnector, so threads above dexodus.maxRequestsPerFriend of this process
+ * are throttled by the client itself.
+ * Usage: WriteBenchmark [url] [threads] [seconds] [value length]
+ */
+public class WriteBenchmark {
+
+    private static final String NS = "writebench";
+
+    public static void main(String[] args) throws InterruptedException {
+        final String url = args.length > 0 ? args[0] : "http://127.0.0.1:9101/";
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        final int valueLength = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        final char[] chars = new char[valueLength];
+        Arrays.fill(chars, 'v');
+        final String value = new String(chars);
+        final RemoteConnector conn = RemoteConnector.getInstance();
+        final long[][] latencies = new long[threads][];
+        final AtomicLong failed = new AtomicLong();
+        final long warmUpEnd = System.currentTimeMillis() + Math.min(5000, seconds * 250L);
+        final long end = warmUpEnd + seconds * 1000L;
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] result = new long[1024];
+                    int count = 0;
+                    long i = 0;
+                    long now;
+                    while ((now = System.currentTimeMillis()) < end) {
+                        final long start = System.nanoTime();
+                        final boolean ok = put(conn, url, "key" + thread + '-' + i++, value);
+                        if (now < warmUpEnd) {
+                            continue;
+                        }
+                        if (!ok) {
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        if (count == result.length) {
+                            result = Arrays.copyOf(result, count * 2);
+                        }
+                        result[count++] = System.nanoTime() - start;
+                    }
+                    latencies[thread] = Arrays.copyOf(result, count);
+                }
+            });
+            workers[t].start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+
+        int total = 0;
+        for (final long[] l : latencies) {
+            total += l.length;
+        }
+        final long[] all = new long[total];
+        int pos = 0;
+        for (final long[] l : latencies) {
+            System.arraycopy(l, 0, all, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(all);
+        System.out.println("Threads: " + threads + ", value length: " + valueLength);
+        System.out.println("Writes/s: " + total / seconds + ", failed: " + failed.get());
+        if (total > 0) {
+            System.out.println("Latency ms: p50 " + all[total / 2] / 1e6 + ", p99 " + all[Math.min(total - 1, total * 99 / 100)] / 1e6);
+        }
+        printStatistics(url);
+        conn.destroy();
+    }
+
+    private static boolean put(@NotNull final RemoteConnector conn, @NotNull final String url,
+                               @NotNull final String key, @NotNull final String value) {
+        try {
+            final ClientResponse response = conn.put(url, NS, key, value, 10000);
+            response.close();
+            return response.getStatus() == ClientResponse.Status.OK.getStatusCode();
+        } catch (TimeoutException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void printStatistics(@NotNull final String url) {
+        try {
+            final Map<String, Long> stats = RemoteConnector.getInstance().stats(url, 10000);
+            for (final Map.Entry<String, Long> entry : stats.entrySet()) {
+                if (entry.getKey().startsWith("client.")) {
+                    System.out.println(entry.getKey() + ": " + entry.getValue());
+                }
+            }
+        } catch (TimeoutException | RuntimeException e) {
+            System.out.println("Can't get statistics: " + e.getMessage());
+        }
+    }
+}